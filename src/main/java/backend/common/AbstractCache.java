@@ -1,34 +1,37 @@
 package backend.common;
 
-import common.Error;
-
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.Set;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @PROJECT_NAME: HCDB
  * @DESCRIPTION:缓存虚拟类
+ * 缓存的容量按字节计, 每个资源的大小由子类的weigh给出, 装入前从MemoryBudget中申请
+ * 每个线程通过这个缓存持有的引用数记在线程本地, 持有引用的线程装入时不等待预算
  * @Author Ccc
  * @DATE: 2023/8/3 11:53
  */
 public abstract class AbstractCache<T> {
-    private HashMap<Long, T> cache;                     // 实际缓存的数据
-    private HashMap<Long, Integer> references;          // 元素的引用个数
-    private HashMap<Long, Boolean> getting;             // 正在获取某资源的线程
+    // 缓存项, 引用计数和数据放在一起, 一次查找即可
+    private static class CacheItem<T> {
+        T obj;
+        int references;                                 // 元素的引用个数
+        long weight;                                    // 元素占用的字节数
+    }
 
-    private int maxResource;                            // 缓存的最大缓存资源数
-    private int count = 0;                              // 缓存中元素的个数
+    private LongHashMap<CacheItem<T>> cache;            // 实际缓存的数据
+    private LongHashMap<Boolean> getting;               // 正在获取某资源的线程
+
+    private MemoryBudget budget;                        // 缓存的内存预算, null表示不限制
+    private ThreadLocal<int[]> pins;                    // 当前线程持有的引用数
     private Lock lock;                                  // 锁
 
-    public AbstractCache(int maxResource) {
-        this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
+    public AbstractCache(MemoryBudget budget) {
+        this.budget = budget;
+        cache = new LongHashMap<>();
+        getting = new LongHashMap<>();
         lock = new ReentrantLock();
+        pins = ThreadLocal.withInitial(() -> new int[1]);
     }
 
     public T get(long key) throws Exception{
@@ -49,20 +52,15 @@ public abstract class AbstractCache<T> {
             }
 
             //如果获取的key在缓存里,那么直接返回
-            if(cache.containsKey(key)){
-                T obj = cache.get(key);
-                references.put(key,references.get(key)+1);
+            CacheItem<T> item = cache.get(key);
+            if(item != null){
+                item.references ++;
                 lock.unlock();
-                return obj;
+                pins.get()[0] ++;
+                return item.obj;
             }
 
             //如果不在缓存,那么就要开始从数据源中获取数据,并在getting集合中添加key
-            if(maxResource > 0 && count == maxResource){
-                lock.unlock();
-                throw Error.CacheFullException;
-            }
-
-            count++;
             getting.put(key,true);
             lock.unlock();
             break;
@@ -76,35 +74,59 @@ public abstract class AbstractCache<T> {
         }catch (Exception e) {
 
             lock.lock();
-            count--;
             getting.remove(key);
             lock.unlock();
             throw e;
         }
 
+        //预算不足时在这里等待其他资源被释放, 自己持有引用时不等
+        int[] held = pins.get();
+        CacheItem<T> item = new CacheItem<>();
+        item.weight = weigh(obj);
+        if(budget != null) {
+            budget.acquire(item.weight, held[0] == 0);
+        }
+        item.obj = obj;
+        //第一次放在缓存里,所以引用次数为1
+        item.references = 1;
         lock.lock();
         getting.remove(key);
-        cache.put(key,obj);
-        //第一次放在缓存里,所以引用次数为1
-        references.put(key,1);
+        cache.put(key,item);
         lock.unlock();
+        held[0] ++;
         return obj;
     }
+    /**
+     * 资源已在缓存中时增加引用并返回, 否则返回null, 不会从数据源读取
+     */
+    protected T getIfCached(long key) {
+        lock.lock();
+        try {
+            CacheItem<T> item = cache.get(key);
+            if(item == null) {
+                return null;
+            }
+            item.references ++;
+            pins.get()[0] ++;
+            return item.obj;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * 强行释放一个缓存
      */
     protected void release(long key) {
+        transferPins(-1);
         lock.lock();
         try {
-            int ref = references.get(key)-1;
-            if(ref == 0) {
-                T obj = cache.get(key);
-                releaseFromCacheForFile(obj);
-                references.remove(key);
+            CacheItem<T> item = cache.get(key);
+            item.references --;
+            if(item.references == 0) {
+                releaseFromCacheForFile(item.obj);
                 cache.remove(key);
-                count --;
-            } else {
-                references.put(key, ref);
+                releaseBudget(item);
             }
         } finally {
             lock.unlock();
@@ -117,12 +139,10 @@ public abstract class AbstractCache<T> {
     protected void close() {
         lock.lock();
         try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                T obj = cache.get(key);
-                releaseFromCacheForFile(obj);
-                references.remove(key);
-                cache.remove(key);
+            for (long key : cache.keys()) {
+                CacheItem<T> item = cache.remove(key);
+                releaseFromCacheForFile(item.obj);
+                releaseBudget(item);
             }
         } finally {
             lock.unlock();
@@ -130,6 +150,25 @@ public abstract class AbstractCache<T> {
     }
 
 
+    /**
+     * 把n个引用记到当前线程上, n为负数时移走, 引用在线程之间转交时使用
+     * 在其他线程释放的引用会少记, 不会记成负数
+     */
+    public void transferPins(int n) {
+        int[] held = pins.get();
+        held[0] = Math.max(0, held[0] + n);
+    }
+
+    private void releaseBudget(CacheItem<T> item) {
+        if(budget != null) {
+            budget.release(item.weight);
+        }
+    }
+
+    /**
+     * 资源占用的字节数, 用于内存预算
+     */
+    protected abstract long weigh(T obj);
     /**
      * 当资源不在缓存时的获取行为
      */
@@ -0,0 +1,82 @@
+package backend.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @PROJECT_NAME: HCDB
+ * @DESCRIPTION:读者宽限期
+ * 读者进入和退出时只在当前纪元的计数上加减一, 不加锁
+ * 写者先把对象摘下, 再调用synchronize切换纪元并等旧纪元的读者全部退出, 之后才能复用对象占用的空间
+ * 计数按线程分段, 同一个读者的加减落在同一段上, 求和时不会把仍在里面的读者漏掉
+ */
+public class EpochGuard {
+    private static final int STRIPES = 64;
+    private static final int PAD = 8;           // 每段占一个缓存行
+
+    private final AtomicLongArray[] readers;
+    private volatile int epoch;
+    private Lock syncLock;
+
+    public EpochGuard() {
+        readers = new AtomicLongArray[] {
+                new AtomicLongArray(STRIPES * PAD),
+                new AtomicLongArray(STRIPES * PAD)
+        };
+        syncLock = new ReentrantLock();
+    }
+
+    // 返回值交给exit, 其中记录了纪元和所在的段, exit可以在别的线程中调用
+    public int enter() {
+        int slot = (int)Thread.currentThread().getId() & (STRIPES - 1);
+        while(true) {
+            int e = epoch;
+            readers[e].incrementAndGet(slot * PAD);
+            if(epoch == e) {
+                return slot << 1 | e;
+            }
+            readers[e].decrementAndGet(slot * PAD);
+        }
+    }
+
+    public void exit(int token) {
+        readers[token & 1].decrementAndGet((token >>> 1) * PAD);
+    }
+
+    // 等待调用之前进入的读者全部退出, 超过timeoutMs时返回false, 此时不能复用空间
+    public boolean synchronize(long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        syncLock.lock();
+        try {
+            int old = epoch;
+            // 上一次超时时留下的读者还在另一个纪元中, 要先等它们退出才能切回去
+            if(!drain(old ^ 1, deadline)) {
+                return false;
+            }
+            epoch = old ^ 1;
+            return drain(old, deadline);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private boolean drain(int e, long deadline) {
+        while(count(e) != 0) {
+            if(System.nanoTime() >= deadline) {
+                return false;
+            }
+            Thread.yield();
+        }
+        return true;
+    }
+
+    private long count(int e) {
+        long sum = 0;
+        for(int i = 0; i < STRIPES; i ++) {
+            sum += readers[e].get(i * PAD);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,53 @@
+package backend.common;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * @PROJECT_NAME: HCDB
+ * @DESCRIPTION:分段读写闩表
+ * 固定数量的StampedLock, 按key的哈希映射, 代替每个对象各自持有一把锁
+ * 同一段上的锁不可重入, 持有一个key的闩时不能再去获取其他key的闩
+ * 除了普通的读写锁, 还支持乐观读: 先取stamp, 读完后validate, 失败时再加读锁重读
+ */
+public class LatchTable {
+
+    private final StampedLock[] latches;
+    private final int mask;
+
+    public LatchTable(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        latches = new StampedLock[size];
+        for(int i = 0; i < size; i ++) {
+            latches[i] = new StampedLock();
+        }
+        mask = size - 1;
+    }
+
+    // 按核数确定段数, 段数越多冲突越少
+    public static int defaultStripes() {
+        return Runtime.getRuntime().availableProcessors() * 64;
+    }
+
+    public Lock readLock(long key) {
+        return latch(key).asReadLock();
+    }
+
+    public Lock writeLock(long key) {
+        return latch(key).asWriteLock();
+    }
+
+    // 返回0表示当前有写者, 需要退回读锁
+    public long tryOptimisticRead(long key) {
+        return latch(key).tryOptimisticRead();
+    }
+
+    public boolean validate(long key, long stamp) {
+        return latch(key).validate(stamp);
+    }
+
+    private StampedLock latch(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return latches[(int)(h ^ (h >>> 32)) & mask];
+    }
+}
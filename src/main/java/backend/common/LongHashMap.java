@@ -0,0 +1,133 @@
+package backend.common;
+
+import java.util.Arrays;
+
+/**
+ * @PROJECT_NAME: HCDB
+ * @DESCRIPTION:以long为键的哈希表
+ * 开放寻址、线性探测，键不装箱，查找和更新都不产生垃圾对象，用于缓存这类热路径
+ * 非线程安全，由调用者加锁
+ */
+public class LongHashMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;            // values[i] == null 表示该槽位为空
+    private int size;
+    private int mask;
+
+    public LongHashMap() {
+        keys = new long[MIN_CAPACITY];
+        values = new Object[MIN_CAPACITY];
+        mask = MIN_CAPACITY - 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = indexOf(key);
+        return i < 0 ? null : (V)values[i];
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    // value不能为null
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        int i = slot(key);
+        while(values[i] != null) {
+            if(keys[i] == key) {
+                V old = (V)values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if(++size * 4 > values.length * 3) {
+            resize(values.length * 2);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = indexOf(key);
+        if(i < 0) {
+            return null;
+        }
+        V old = (V)values[i];
+        // 把后面同一探测链上的元素往前挪，保证查找不会因为空槽提前结束
+        int hole = i;
+        int j = (i + 1) & mask;
+        while(values[j] != null) {
+            int home = slot(keys[j]);
+            if(((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+            j = (j + 1) & mask;
+        }
+        values[hole] = null;
+        size --;
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // 返回当前所有的键，拷贝一份，遍历期间可以修改表
+    public long[] keys() {
+        long[] result = new long[size];
+        int n = 0;
+        for(int i = 0; i < values.length; i ++) {
+            if(values[i] != null) {
+                result[n ++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private int indexOf(long key) {
+        int i = slot(key);
+        while(values[i] != null) {
+            if(keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        for(int i = 0; i < oldValues.length; i ++) {
+            if(oldValues[i] != null) {
+                int j = slot(oldKeys[i]);
+                while(values[j] != null) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
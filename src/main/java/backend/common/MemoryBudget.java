@@ -0,0 +1,83 @@
+package backend.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @PROJECT_NAME: HCDB
+ * @DESCRIPTION:按字节计的内存预算
+ * 缓存装入资源前先acquire对应的字节数, 资源被驱逐时release
+ * 预算不足时acquire会阻塞, 等待其他线程释放资源(背压), 而不是直接抛出CacheFullException
+ * 缓存中的资源都被引用着, 调用者自己持有引用时等的可能正是自己占着的空间, 这时不等待, 直接超出预算;
+ * 其他线程的引用也可能长时间不释放, 所以最多等待MAX_WAIT_MS, 超时后同样允许超出预算
+ * 全局预算通过slice按比例切分给页面缓存、dataitem缓存和entry缓存
+ */
+public class MemoryBudget {
+    private static final long MAX_WAIT_MS = 1000;
+
+    // 全局预算在三级缓存间的分配比例, 页面存放实际数据, 占绝大部分
+    public static final int PAGE_SHARE = 80;
+    public static final int DATA_ITEM_SHARE = 10;
+    public static final int ENTRY_SHARE = 10;
+
+    private final long limit;
+    private long used;
+    private Lock lock;
+    private Condition released;
+
+    public MemoryBudget(long limit) {
+        this.limit = limit;
+        this.lock = new ReentrantLock();
+        this.released = lock.newCondition();
+    }
+
+    // 切出总预算的percent%作为一个独立的预算
+    public MemoryBudget slice(int percent) {
+        return new MemoryBudget(limit / 100 * percent);
+    }
+
+    public long limit() {
+        return limit;
+    }
+
+    public long used() {
+        lock.lock();
+        try {
+            return used;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 预算中没有占用时总是允许装入, 保证单个超大的资源也能被装入
+    // mayWait为false时预算不足也不等待
+    public void acquire(long bytes, boolean mayWait) {
+        lock.lock();
+        try {
+            long nanos = mayWait ? TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MS) : 0;
+            while(used > 0 && used + bytes > limit && nanos > 0) {
+                try {
+                    nanos = released.awaitNanos(nanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            used += bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(long bytes) {
+        lock.lock();
+        try {
+            used -= bytes;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package backend.dm;
+
+import backend.common.SubArray;
+import backend.dm.dataItem.DataItemImpl;
+import backend.dm.page.Page;
+import backend.dm.page.PageX;
+import backend.dm.pagecache.PageCache;
+import backend.utils.Parser;
+import backend.utils.Types;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * @description:按页顺序扫描所有合法dataitem的游标
+ *
+ * 从第二页扫描到扫描开始时的最后一页, 按PageX的FSO划分每页中的dataitem。
+ * 页面按块读入两块轮流使用的缓冲区, 解析一块的同时后台预读下一块, 读入的页不进入页面缓存。
+ * 已经在页面缓存中的页直接使用缓存中的版本, 这样还没写回的修改也能被扫到。
+ * 预读之后才写回并逐出的页, 预读的内容已经过时, 通过页面缓存的写回计数发现后单独重新读取这一页。
+ * uid()和data()返回当前dataitem, data()在下一次next()之前有效。
+ **/
+public class DataItemScanner {
+
+    private static final int CHUNK_PAGES = 16;      // 每次预读的页数
+
+    private PageCache pc;
+    private ExecutorService prefetcher;
+
+    private byte[][] ring;                          // 两块预读缓冲区
+    private int[][] ringStamps;                     // 预读时每页的写回计数
+    private byte[] single;                          // 重新读取单页的缓冲区
+    private int[] singleStamp;
+    private int lastPgno;                           // 扫描的最后一页
+    private int nextPgno;                           // 下一块预读的起始页
+    private Future<Integer> pending;                // 正在预读的块, 返回读到的页数
+    private int pendingIdx;
+    private int pendingStart;
+
+    private byte[] chunk;                           // 当前正在解析的块
+    private int[] chunkStamps;
+    private int chunkStart;
+    private int chunkPages;
+    private int pageIdx;
+
+    private byte[] pageRaw;                         // 当前页所在的数组
+    private int pageBase;                           // 当前页在数组中的起点
+    private int pgno;
+    private int pos;                                // 下一个dataitem的位置
+    private int fso;
+    private Page cachedPage;                        // 当前页来自页面缓存时持有它的引用
+
+    private long uid;
+    private SubArray data;
+
+    DataItemScanner(PageCache pc, ExecutorService prefetcher) {
+        this.pc = pc;
+        this.prefetcher = prefetcher;
+        this.ring = new byte[2][CHUNK_PAGES * PageCache.PAGE_SIZE];
+        this.ringStamps = new int[2][CHUNK_PAGES];
+        this.single = new byte[PageCache.PAGE_SIZE];
+        this.singleStamp = new int[1];
+        this.lastPgno = pc.getPageNumber();
+        this.nextPgno = 2;
+        this.data = new SubArray(null, 0, 0);
+        this.pendingIdx = 1;
+        prefetch();
+    }
+
+    // 移动到下一个合法的dataitem, 没有时返回false
+    public boolean next() throws Exception {
+        while(true) {
+            if(pageRaw != null && pos < fso) {
+                int offset = pos;
+                short size = Parser.parseShort(pageRaw, offset+DataItemImpl.OF_SIZE);
+                pos += DataItemImpl.OF_DATA + size;
+                if(pageRaw[offset+DataItemImpl.OF_VALID] != (byte)0) {
+                    continue;
+                }
+                uid = Types.addressToUid(pgno, (short)(offset - pageBase));
+                data.raw = pageRaw;
+                data.start = offset + DataItemImpl.OF_DATA;
+                data.end = offset + DataItemImpl.OF_DATA + size;
+                return true;
+            }
+            if(!nextPage()) {
+                return false;
+            }
+        }
+    }
+
+    public long uid() {
+        return uid;
+    }
+
+    public SubArray data() {
+        return data;
+    }
+
+    // 当前页是否来自页面缓存, 缓存中的页可能被并发修改, 需要一致读的调用者应通过read(uid)读取
+    public boolean inCache() {
+        return cachedPage != null;
+    }
+
+    public void close() {
+        releaseCachedPage();
+        pageRaw = null;
+        pending = null;
+    }
+
+    private boolean nextPage() throws Exception {
+        releaseCachedPage();
+        if(chunk == null || pageIdx >= chunkPages) {
+            if(!nextChunk()) {
+                pageRaw = null;
+                return false;
+            }
+        }
+        pgno = chunkStart + pageIdx;
+        Page pg = pc.getPageIfCached(pgno);
+        if(pg != null) {
+            cachedPage = pg;
+            pageRaw = pg.getData();
+            pageBase = 0;
+        } else if(pc.writeStamp(pgno) != chunkStamps[pageIdx] && pc.readPages(pgno, single, 1, singleStamp) == 1) {
+            // 预读之后这一页被写回过, 缓存中也没有了, 文件中的才是最新的版本
+            pageRaw = single;
+            pageBase = 0;
+        } else {
+            pageRaw = chunk;
+            pageBase = pageIdx * PageCache.PAGE_SIZE;
+        }
+        pageIdx ++;
+        pos = pageBase + PageX.OF_DATA;
+        fso = pageBase + Math.min(PageX.getFSO(pageRaw, pageBase), PageCache.PAGE_SIZE);
+        return true;
+    }
+
+    // 切换到预读好的块, 并开始预读再下一块
+    private boolean nextChunk() throws Exception {
+        if(pending == null) {
+            return false;
+        }
+        chunkPages = pending.get();
+        chunk = ring[pendingIdx];
+        chunkStamps = ringStamps[pendingIdx];
+        chunkStart = pendingStart;
+        pageIdx = 0;
+        prefetch();
+        return chunkPages > 0 || nextChunk();
+    }
+
+    private void prefetch() {
+        if(nextPgno > lastPgno) {
+            pending = null;
+            return;
+        }
+        int idx = pendingIdx ^ 1;
+        int start = nextPgno;
+        int count = Math.min(CHUNK_PAGES, lastPgno - nextPgno + 1);
+        nextPgno += count;
+        pendingIdx = idx;
+        pendingStart = start;
+        pending = prefetcher.submit(() -> pc.readPages(start, ring[idx], count, ringStamps[idx]));
+    }
+
+    private void releaseCachedPage() {
+        if(cachedPage != null) {
+            cachedPage.release();
+            cachedPage = null;
+        }
+    }
+}
@@ -1,33 +1,56 @@
 package backend.dm;
 
 
+import backend.common.MemoryBudget;
 import backend.dm.dataItem.DataItem;
 import backend.dm.logger.Logger;
 import backend.dm.page.PageOne;
 import backend.dm.pagecache.PageCache;
 import backend.tm.TransactionManager;
 
+import java.util.List;
+
 public interface DataManager {
     DataItem read(long uid) throws Exception;
+    DataItem[] readMany(long[] uids) throws Exception;
+    int maxReadManyPages();
+    DataItemScanner scan();
     long insert(long xid, byte[] data) throws Exception;
+    long[] insertBatch(long xid, List<byte[]> datas) throws Exception;
+    boolean free(long uid) throws Exception;
+    int reclaim(int pgno) throws Exception;
+    List<Integer> takeUndonePages();
+    boolean takeSpilledAbort();
+    void flushLog();
+    void startRedo(long xid);
+    void commitRedo(long xid);
+    void abortRedo(long xid);
+    long unflushedLog();
+    MemoryBudget memoryBudget();
     void close();
 
+    // mem为整个数据库的内存预算, 按MemoryBudget中的比例分给页面、dataitem和entry缓存
     public static DataManager create(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.create(path, mem);
+        MemoryBudget budget = new MemoryBudget(mem);
+        PageCache pc = PageCache.create(path, budget.slice(MemoryBudget.PAGE_SHARE));
         Logger lg = Logger.create(path);
+        pc.setLogger(lg);
 
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, budget);
         dm.initPageOne();
         return dm;
     }
 
     public static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.open(path, mem);
+        MemoryBudget budget = new MemoryBudget(mem);
+        PageCache pc = PageCache.open(path, budget.slice(MemoryBudget.PAGE_SHARE));
         Logger lg = Logger.open(path);
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        pc.setLogger(lg);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, budget);
         if(!dm.loadCheckPageOne()) {
             Recover.recover(tm, lg, pc);
         }
+        tm.abortActive();
         dm.fillPageIndex();
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
@@ -2,6 +2,8 @@ package backend.dm;
 
 
 import backend.common.AbstractCache;
+import backend.common.LatchTable;
+import backend.common.MemoryBudget;
 import backend.dm.dataItem.DataItem;
 import backend.dm.dataItem.DataItemImpl;
 import backend.dm.logger.Logger;
@@ -12,10 +14,24 @@ import backend.dm.pageIndex.PageIndex;
 import backend.dm.pageIndex.PageInfo;
 import backend.dm.pagecache.PageCache;
 import backend.tm.TransactionManager;
+import backend.tm.TransactionManagerImpl;
 import backend.utils.Panic;
+import backend.utils.Parser;
 import backend.utils.Types;
 import common.Error;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * @author: Ccc
  * @description:数据管理类
@@ -24,24 +40,44 @@ import common.Error;
 
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
 
+    // 批量读时并行读入页面的线程数
+    private static final int PREFETCH_THREADS = 4;
+
     TransactionManager tm;
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
     Page pageOne;
+    ExecutorService prefetcher;
+    public LatchTable latches;  // dataitem的读写锁
+    MemoryBudget budget;        // 整个数据库的内存预算
+    Map<Long, RedoBuffer> redoBuffers;  // 缓冲日志的事务
+    Set<Integer> undonePages;           // 回滚时撤销过插入、等待回收空间的页
+    int maxReadManyPages;               // 一次readMany最多涉及的页数, 页面缓存预算的一半
+    AtomicBoolean spilledAbort;         // 有回滚的事务提前写入过日志
 
-    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
-        super(0);
+    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm, MemoryBudget budget) {
+        super(budget.slice(MemoryBudget.DATA_ITEM_SHARE));
+        this.budget = budget;
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
         this.pIndex = new PageIndex();
+        this.latches = new LatchTable(LatchTable.defaultStripes());
+        this.redoBuffers = new ConcurrentHashMap<>();
+        this.undonePages = ConcurrentHashMap.newKeySet();
+        this.spilledAbort = new AtomicBoolean();
+        this.maxReadManyPages = (int)Math.max(1, budget.slice(MemoryBudget.PAGE_SHARE).limit() / PageCache.PAGE_SIZE / 2);
+        this.prefetcher = Executors.newFixedThreadPool(PREFETCH_THREADS, r -> {
+            Thread t = new Thread(r, "dm-prefetch");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     @Override
     public DataItem read(long uid) throws Exception {
         DataItemImpl di = (DataItemImpl)super.get(uid);
-        System.out.println(di.toString());
         if(!di.isValid()) {
             di.release();
             return null;
@@ -49,6 +85,91 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         return di;
     }
 
+    // 从第二页开始顺序扫描所有合法的dataitem
+    @Override
+    public DataItemScanner scan() {
+        return new DataItemScanner(pc, prefetcher);
+    }
+
+    // 批量读取, 先按页分组, 每页只取一次, 多个页面并行读入, 之后各dataitem都从已在缓存中的页解析
+    // 返回的数组与uids一一对应, 非法的dataitem对应null
+    // 返回的dataitem引用着所在的页, 涉及的页超过maxReadManyPages时抛出CacheFullException, 调用者应分批读取
+    @Override
+    public DataItem[] readMany(long[] uids) throws Exception {
+        List<Page> pages = pinPages(uids);
+        DataItem[] result = new DataItem[uids.length];
+        try {
+            for(int i = 0; i < uids.length; i ++) {
+                result[i] = read(uids[i]);
+            }
+        } catch(Exception e) {
+            for(DataItem di : result) {
+                if(di != null) di.release();
+            }
+            throw e;
+        } finally {
+            for(Page pg : pages) {
+                pg.release();
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int maxReadManyPages() {
+        return maxReadManyPages;
+    }
+
+    // 取出uids涉及的所有页, 按页号排序去重, 多于一页时并行读取
+    // 读取线程替调用者取页, 调用者之后持有这些引用, 所以读取时不等待预算, 取到的引用转交给调用者
+    private List<Page> pinPages(long[] uids) throws Exception {
+        long[] sorted = uids.clone();
+        Arrays.sort(sorted);
+        List<Integer> pgnos = new ArrayList<>();
+        for(long uid : sorted) {
+            int pgno = Types.uidToPgno(uid);
+            if(pgnos.isEmpty() || pgnos.get(pgnos.size()-1) != pgno) {
+                pgnos.add(pgno);
+            }
+        }
+
+        if(pgnos.size() > maxReadManyPages) {
+            throw Error.CacheFullException;
+        }
+        List<Page> pages = new ArrayList<>(pgnos.size());
+        if(pgnos.size() == 1) {
+            pages.add(pc.getPage(pgnos.get(0)));
+            return pages;
+        }
+        List<Future<Page>> futures = new ArrayList<>(pgnos.size());
+        for(int pgno : pgnos) {
+            futures.add(prefetcher.submit(() -> {
+                pc.transferPins(1);
+                try {
+                    return pc.getPage(pgno);
+                } finally {
+                    pc.transferPins(-2);
+                }
+            }));
+        }
+        Exception err = null;
+        for(Future<Page> f : futures) {
+            try {
+                pages.add(f.get());
+                pc.transferPins(1);
+            } catch(Exception e) {
+                err = e;
+            }
+        }
+        if(err != null) {
+            for(Page pg : pages) {
+                pg.release();
+            }
+            throw err;
+        }
+        return pages;
+    }
+
     @Override
     public long insert(long xid, byte[] data) throws Exception {
         byte[] raw = DataItem.wrapDataItemRaw(data);
@@ -56,28 +177,27 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             throw Error.DatabaseBusyException;
         }
 
-        PageInfo pi = null;
-        for(int i = 0; i < 5; i ++) {
-            pi = pIndex.select(raw.length);
-            if (pi != null) {
-                break;
-            } else {
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
-            }
-        }
-        if(pi == null) {
-            throw Error.DatabaseBusyException;
+        RedoBuffer rb = redoBuffers.get(xid);
+        if(rb != null) {
+            return insertBuffered(rb, raw);
         }
 
+        PageInfo pi = selectPage(raw.length);
+
         Page pg = null;
         int freeSpace = 0;
         try {
             pg = pc.getPage(pi.pgno);
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
-
-            short offset = PageX.insert(pg, raw);
+            short offset;
+            // 写日志和插入在页锁内完成, 保证PageLSN标记的日志都已作用在页面上
+            pg.lock();
+            try {
+                byte[] log = Recover.insertLog(xid, pg, raw);
+                long lsn = logger.log(log);
+                offset = PageX.insert(pg, raw, lsn);
+            } finally {
+                pg.unlock();
+            }
 
             pg.release();
             return Types.addressToUid(pi.pgno, offset);
@@ -92,31 +212,334 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         }
     }
 
+    // 批量插入, 把连续的多条数据尽量紧凑地放进同一页, 每页只写一条insert日志
+    @Override
+    public long[] insertBatch(long xid, List<byte[]> datas) throws Exception {
+        byte[][] raws = new byte[datas.size()][];
+        for(int i = 0; i < raws.length; i ++) {
+            raws[i] = DataItem.wrapDataItemRaw(datas.get(i));
+            if(raws[i].length > PageX.MAX_FREE_SPACE) {
+                throw Error.DatabaseBusyException;
+            }
+        }
+
+        long[] uids = new long[raws.length];
+        RedoBuffer rb = redoBuffers.get(xid);
+        int i = 0;
+        while(i < raws.length) {
+            if(rb != null) {
+                Page pg = ownedPage(rb, raws[i].length);
+                int j = fit(raws, i, PageX.getFreeSpace(pg));
+                insertBlock(rb, pg, raws, i, j, uids);
+                i = j;
+                continue;
+            }
+            PageInfo pi = selectPage(raws[i].length);
+            Page pg = null;
+            try {
+                pg = pc.getPage(pi.pgno);
+                // 从第i条开始, 放得下的都放进这一页
+                int j = fit(raws, i, PageX.getFreeSpace(pg));
+                if(j == i) {
+                    throw Error.DatabaseBusyException;
+                }
+                byte[] block = pack(raws, i, j);
+
+                short offset;
+                pg.lock();
+                try {
+                    byte[] log = Recover.insertLog(xid, pg, block);
+                    long lsn = logger.log(log);
+                    offset = PageX.insert(pg, block, lsn);
+                } finally {
+                    pg.unlock();
+                }
+                for(int k = i; k < j; k ++) {
+                    uids[k] = Types.addressToUid(pi.pgno, offset);
+                    offset += raws[k].length;
+                }
+                i = j;
+            } finally {
+                // 将取出的pg重新插入pIndex
+                if(pg != null) {
+                    pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
+                    pg.release();
+                } else {
+                    pIndex.add(pi.pgno, pi.freeSpace);
+                }
+            }
+        }
+        if(rb != null) {
+            spillIfFull(rb);
+        }
+        return uids;
+    }
+
+    // 从第i条开始, 空闲空间freeSpace放得下的最后一条之后的下标
+    private static int fit(byte[][] raws, int i, int freeSpace) {
+        int j = i, size = 0;
+        while(j < raws.length && size + raws[j].length <= freeSpace) {
+            size += raws[j].length;
+            j ++;
+        }
+        return j;
+    }
+
+    private static byte[] pack(byte[][] raws, int i, int j) {
+        int size = 0;
+        for(int k = i; k < j; k ++) {
+            size += raws[k].length;
+        }
+        byte[] block = new byte[size];
+        for(int k = i, pos = 0; k < j; k ++) {
+            System.arraycopy(raws[k], 0, block, pos, raws[k].length);
+            pos += raws[k].length;
+        }
+        return block;
+    }
+
+    // 缓冲日志的事务插入自己占有的页, 日志记在rb中, 页面的LSN在日志写入时再标记
+    private long insertBuffered(RedoBuffer rb, byte[] raw) throws Exception {
+        long[] uids = new long[1];
+        insertBlock(rb, ownedPage(rb, raw.length), new byte[][] {raw}, 0, 1, uids);
+        spillIfFull(rb);
+        return uids[0];
+    }
+
+    private void insertBlock(RedoBuffer rb, Page pg, byte[][] raws, int i, int j, long[] uids) throws Exception {
+        byte[] block = pack(raws, i, j);
+        short offset;
+        pg.lock();
+        try {
+            byte[] log = Recover.insertLog(rb.xid, pg, block);
+            offset = PageX.insert(pg, block, 0);
+            rb.add(pg, 0, log);
+        } finally {
+            pg.unlock();
+        }
+        for(int k = i; k < j; k ++) {
+            uids[k] = Types.addressToUid(pg.getPageNumber(), offset);
+            offset += raws[k].length;
+        }
+    }
+
+    // 当前插入的页放不下时从pIndex再取一页, 取出的页交给rb, 日志写入后才放回
+    private Page ownedPage(RedoBuffer rb, int size) throws Exception {
+        Page pg = rb.insertPage(size);
+        if(pg != null) {
+            return pg;
+        }
+        PageInfo pi = selectPage(size);
+        try {
+            pg = pc.getPage(pi.pgno);
+        } catch(Exception e) {
+            pIndex.add(pi.pgno, pi.freeSpace);
+            throw e;
+        }
+        rb.own(pg);
+        return pg;
+    }
+
+    private void spillIfFull(RedoBuffer rb) {
+        if(rb.isFull()) {
+            rb.spill();
+        }
+    }
+
+    // 开始缓冲xid的日志
+    @Override
+    public void startRedo(long xid) {
+        redoBuffers.put(xid, new RedoBuffer(this, xid));
+    }
+
+    // 把xid缓冲的日志和提交日志作为连续的一段写入日志文件, 提交时在落盘之前调用
+    // 提交日志落盘后提交就已经持久化, tm写入状态时不再单独落盘
+    @Override
+    public void commitRedo(long xid) {
+        RedoBuffer rb = redoBuffers.remove(xid);
+        if(rb != null) {
+            rb.commit();
+        } else {
+            logger.log(Recover.commitLog(xid));
+        }
+    }
+
+    // 在内存中撤销xid缓冲的日志并丢弃, 回滚时在修改事务状态之前调用
+    @Override
+    public void abortRedo(long xid) {
+        RedoBuffer rb = redoBuffers.remove(xid);
+        if(rb != null) {
+            rb.rollback();
+        }
+    }
+
+    // 把不再被引用的dataitem标记为非法, 以SUPER_XID记日志, 恢复时只会被重做, 已经非法时返回false
+    // 占用的空间要等所在页页尾的dataitem都非法后由reclaim回收
+    @Override
+    public boolean free(long uid) throws Exception {
+        DataItemImpl di = (DataItemImpl)super.get(uid);
+        try {
+            di.before();
+            if(!di.isValid()) {
+                di.unBefore();
+                return false;
+            }
+            DataItem.setDataItemRawInvalid(di.getRaw());
+            di.after(TransactionManagerImpl.SUPER_XID);
+            return true;
+        } finally {
+            di.release();
+        }
+    }
+
+    // 把FSO前移到最后一个合法dataitem之后, 回收页尾非法dataitem占用的空间, 并把新的空闲空间交给pIndex
+    // 页面正在被插入时跳过, 返回回收的字节数
+    // 调用者保证被回收的dataitem已经没有读者, 否则它们的uid可能指向之后插入的数据
+    @Override
+    public int reclaim(int pgno) throws Exception {
+        Page pg = pc.getPage(pgno);
+        try {
+            PageInfo pi = pIndex.take(pgno, PageX.getFreeSpace(pg));
+            if(pi == null) {
+                return 0;
+            }
+            int reclaimed = 0;
+            pg.lock();
+            try {
+                short fso = PageX.getFSO(pg);
+                short end = liveEnd(pg.getData(), fso);
+                if(end < fso) {
+                    byte[] log = Recover.fsoLog(TransactionManagerImpl.SUPER_XID, pg, end);
+                    long lsn = logger.log(log);
+                    // 日志已经写入, 页面没有跟着修改时不能继续运行
+                    try {
+                        PageX.rewindFSO(pg, end, lsn);
+                    } catch(Exception e) {
+                        Panic.panic(e);
+                    }
+                    reclaimed = fso - end;
+                }
+            } finally {
+                pg.unlock();
+                pIndex.add(pgno, PageX.getFreeSpace(pg));
+            }
+            return reclaimed;
+        } finally {
+            pg.release();
+        }
+    }
+
+    // 取出回滚时撤销过插入的页, 和free过的页一样由调用者在没有旧读者后reclaim
+    @Override
+    public List<Integer> takeUndonePages() {
+        List<Integer> pgnos = new ArrayList<>();
+        for(Iterator<Integer> it = undonePages.iterator(); it.hasNext(); ) {
+            pgnos.add(it.next());
+            it.remove();
+        }
+        return pgnos;
+    }
+
+    // 上次调用之后是否有回滚的事务提前写入过日志, 它们插入的dataitem只能通过扫描找到
+    @Override
+    public boolean takeSpilledAbort() {
+        return spilledAbort.getAndSet(false);
+    }
+
+    // 页面中最后一个合法dataitem的结束位置
+    private static short liveEnd(byte[] raw, short fso) {
+        int end = PageX.OF_DATA;
+        int pos = PageX.OF_DATA;
+        while(pos < fso) {
+            short size = Parser.parseShort(raw, pos+DataItemImpl.OF_SIZE);
+            int next = pos + DataItemImpl.OF_DATA + size;
+            if(raw[pos+DataItemImpl.OF_VALID] == (byte)0) {
+                end = next;
+            }
+            pos = next;
+        }
+        return (short)end;
+    }
+
+    // 从pIndex中选出一个至少有size空闲空间的页, 没有的话新建页
+    private PageInfo selectPage(int size) throws Exception {
+        PageInfo pi = null;
+        for(int i = 0; i < 5; i ++) {
+            pi = pIndex.select(size);
+            if (pi != null) {
+                break;
+            } else {
+                int newPgno = pc.newPage(PageX.initRaw());
+                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+            }
+        }
+        if(pi == null) {
+            throw Error.DatabaseBusyException;
+        }
+        return pi;
+    }
+
     @Override
     public void close() {
+        prefetcher.shutdown();
         super.close();
-        logger.close();
 
         PageOne.setVcClose(pageOne);
         pageOne.release();
+        //页面写回要先刷日志, 日志最后关闭
         pc.close();
+        logger.flushAll();
+        logger.close();
     }
 
-    // 为xid生成update日志
+    // 为xid生成update日志, 并用日志的lsn标记di所在的页
+    // xid缓冲日志时记在它的缓冲中, 页面由缓冲引用住, 日志写入时再标记
     public void logDataItem(long xid, DataItem di) {
         byte[] log = Recover.updateLog(xid, di);
-        logger.log(log);
+        RedoBuffer rb = redoBuffers.get(xid);
+        if(rb != null) {
+            try {
+                rb.add(di.page(), di.getUid(), log);
+            } catch(Exception e) {
+                Panic.panic(e);
+            }
+            spillIfFull(rb);
+            return;
+        }
+        long lsn = logger.log(log);
+        PageX.setLSN(di.page(), lsn);
     }
 
     public void releaseDataItem(DataItem di) {
         super.release(di.getUid());
     }
 
+    @Override
+    public MemoryBudget memoryBudget() {
+        return budget;
+    }
+
+    // 写日志时不落盘, 提交前由vm调用, 让之前写入的日志全部持久化, 之后写回等待这些日志的页
+    @Override
+    public void flushLog() {
+        logger.flushAll();
+        pc.writeDeferred();
+    }
+
+    @Override
+    public long unflushedLog() {
+        return logger.unflushed();
+    }
+
+    @Override
+    protected long weigh(DataItem di) {
+        return DataItemImpl.SHALLOW_SIZE;
+    }
+
     @Override
     protected DataItem getFromFileForCache(long uid) throws Exception {
-        short offset = (short)(uid & ((1L << 16) - 1));
-        uid >>>= 32;
-        int pgno = (int)(uid & ((1L << 32) - 1));
+        short offset = Types.uidToOffset(uid);
+        int pgno = Types.uidToPgno(uid);
         Page pg = pc.getPage(pgno);
         return DataItem.parseDataItem(pg, offset, this);
     }
@@ -2,6 +2,7 @@ package backend.dm;
 
 import backend.common.SubArray;
 import backend.dm.dataItem.DataItem;
+import backend.dm.logger.LogIterator;
 import backend.dm.logger.Logger;
 import backend.dm.page.Page;
 import backend.dm.page.PageX;
@@ -9,10 +10,15 @@ import backend.dm.pagecache.PageCache;
 import backend.tm.TransactionManager;
 import backend.utils.Panic;
 import backend.utils.Parser;
+import backend.utils.Types;
 import com.google.common.primitives.Bytes;
 
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author: Ccc
@@ -26,141 +32,282 @@ public class Recover {
 
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_UPDATE_DELTA = 2;
+    private static final byte LOG_TYPE_COMMIT = 3;
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
 
+    // 默认的redo线程数
+    public static final int DEFAULT_REDO_THREADS = Runtime.getRuntime().availableProcessors();
+
     //定义两种日志格式
     // updateLog:
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
+    // 或只记录被修改区间的紧凑格式:
+    // [LogType] [XID] [UID] [RangeCount] [Range1] ... [RangeN]
 
     // insertLog:
     // [LogType] [XID] [Pgno] [Offset] [Raw]
+    // 批量插入时Raw是连续插入同一页的多个DataItem
+
+    // commitLog:
+    // [LogType] [XID]
+    // 提交日志落盘即提交持久化, xid文件中的状态不再单独落盘, 恢复时按提交日志补上
 
+    // 解析出的raw都直接指向日志所在的数组,不做拷贝
     static class InsertLogInfo {
         long xid;
         int pgno;
         short offset;
-        byte[] raw;
+        SubArray raw;
     }
 
+    // 完整格式的update日志也看作只有一个区间,偏移为0
     static class UpdateLogInfo {
         long xid;
         int pgno;
         short offset;
-        byte[] oldRaw;
-        byte[] newRaw;
+        short[] rangeOffsets;   // 每个区间相对DataItem起点的偏移
+        SubArray[] oldRaws;
+        SubArray[] newRaws;
     }
 
-    //对于已提交的事务进行重做
-    public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
-        System.out.println("Recovering...");
+    // 带LSN的日志, LSN即日志在日志文件中的偏移
+    static class LogRecord {
+        long lsn;
+        long xid;
+        SubArray log;
 
-        //将log的position移动到4
-        lg.rewind();
-        int maxPgno = 0;
-        //这段循环只是为了找到最大的页号
-        while(true) {
-            //获取日志文件的log
-            byte[] log = lg.next();
-            if(log == null) break;
-            int pgno;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
-            } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
+        LogRecord(long lsn, long xid, SubArray log) {
+            this.lsn = lsn;
+            this.xid = xid;
+            this.log = log;
+        }
+    }
+
+    // 分析阶段的结果, 之后的redo和undo都由它驱动, 不再重读日志
+    static class LogAnalysis {
+        int maxPgno;
+        Map<Integer, List<LogRecord>> pageLogs = new TreeMap<>();    // 每页需要redo的日志, 页内保持日志顺序
+        Map<Long, List<SubArray>> activeLogs = new LinkedHashMap<>(); // 未完成事务的日志, 用于undo
+        Map<Long, Boolean> xidActive = new HashMap<>();              // 每个XID只向tm查询一次
+        Set<Long> committed = new HashSet<>();                       // 有提交日志的XID
+    }
+
+    // 把迭代器返回的日志拷贝到大块数组中, 避免每条日志单独分配
+    private static class LogArena {
+        private static final int CHUNK_SIZE = 1 << 20;
+        private byte[] chunk = new byte[CHUNK_SIZE];
+        private int used = 0;
+
+        SubArray copy(SubArray log) {
+            int length = log.end - log.start;
+            if(length > CHUNK_SIZE) {
+                return new SubArray(Arrays.copyOfRange(log.raw, log.start, log.end), 0, length);
             }
-            if(pgno > maxPgno) {
-                //通过循环记录最大的页号
-                maxPgno = pgno;
+            if(used + length > chunk.length) {
+                chunk = new byte[CHUNK_SIZE];
+                used = 0;
             }
+            System.arraycopy(log.raw, log.start, chunk, used, length);
+            SubArray sa = new SubArray(chunk, used, used+length);
+            used += length;
+            return sa;
         }
-        if(maxPgno == 0) {
-            maxPgno = 1;
-        }
-        //
-        pc.truncateByBgno(maxPgno);
-        System.out.println("Truncate to " + maxPgno + " pages.");
+    }
+
+    //对于已提交的事务进行重做
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+        recover(tm, lg, pc, DEFAULT_REDO_THREADS);
+    }
+
+    // redoThreads为redo使用的线程数, 小于等于1时在当前线程中redo
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, int redoThreads) {
+        System.out.println("Recovering...");
+
+        LogAnalysis la = analyze(tm, lg);
+        commitTransactions(tm, la);
+        pc.truncateByBgno(la.maxPgno);
+        System.out.println("Truncate to " + la.maxPgno + " pages.");
 
         //开始重做所有已完成的事务
-        redoTranscations(tm, lg, pc);
+        redoTranscations(pc, la, redoThreads);
         System.out.println("Redo Transactions Over.");
 
-        undoTranscations(tm, lg, pc);
+        undoTranscations(tm, pc, la);
         System.out.println("Undo Transactions Over.");
 
         System.out.println("Recovery Over.");
     }
 
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        lg.rewind();
-        while(true) {
-            byte[] log = lg.next();
-            if(log == null) break;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                //如果事务已提交,执行重做插入日志
-                if(!tm.isActive(xid)) {
-                    doInsertLog(pc, log, REDO);
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                //如果事务已提交,执行重做修改日志
-                if(!tm.isActive(xid)) {
-                    doUpdateLog(pc, log, REDO);
-                }
+    // 只遍历一遍日志, 记录最大页号, 并按页和按事务整理日志
+    // 提交日志可能在事务的其他日志之后很远, 先把所有日志按页记下, 遍历完之后再去掉仍未完成的事务的日志
+    static LogAnalysis analyze(TransactionManager tm, Logger lg) {
+        LogAnalysis la = new LogAnalysis();
+        LogArena arena = new LogArena();
+        LogIterator it = lg.iterator();
+        while(it.hasNext()) {
+            SubArray log = arena.copy(it.next());
+            long xid = Parser.parseLong(log.raw, log.start+OF_XID);
+            if(isCommitLog(log)) {
+                la.committed.add(xid);
+                continue;
+            }
+            int pgno = getPgno(log);
+            if(pgno > la.maxPgno) {
+                la.maxPgno = pgno;
+            }
+
+            Boolean active = la.xidActive.get(xid);
+            if(active == null) {
+                active = tm.isActive(xid);
+                la.xidActive.put(xid, active);
+            }
+            if(active) {
+                la.activeLogs.computeIfAbsent(xid, k -> new ArrayList<>()).add(log);
             }
+            la.pageLogs.computeIfAbsent(pgno, k -> new ArrayList<>()).add(new LogRecord(it.current(), xid, log));
         }
+        la.activeLogs.keySet().removeAll(la.committed);
+        if(!la.activeLogs.isEmpty()) {
+            for(List<LogRecord> logs : la.pageLogs.values()) {
+                logs.removeIf(r -> la.activeLogs.containsKey(r.xid));
+            }
+            la.pageLogs.values().removeIf(List::isEmpty);
+        }
+        if(la.maxPgno == 0) {
+            la.maxPgno = 1;
+        }
+        return la;
+    }
+
+    // 提交日志已经落盘、xid文件中还不是已提交的事务改为已提交, 和之后的abortActive一起落盘
+    private static void commitTransactions(TransactionManager tm, LogAnalysis la) {
+        List<Long> xids = new ArrayList<>();
+        for(long xid : la.committed) {
+            if(!tm.isCommitted(xid)) {
+                xids.add(xid);
+            }
+        }
+        tm.commitDurable(xids);
     }
 
-    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        lg.rewind();
-        while(true) {
-            byte[] log = lg.next();
-            if(log == null) break;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
+    // 按页重做, 每页只取一次
+    // 不同页的日志互不影响, 按pgno把页分给多个线程, 同一页的日志只在一个线程中按日志顺序重做
+    private static void redoTranscations(PageCache pc, LogAnalysis la, int threads) {
+        if(threads <= 1 || la.pageLogs.size() <= 1) {
+            for(Entry<Integer, List<LogRecord>> entry : la.pageLogs.entrySet()) {
+                redoPage(pc, entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+
+        List<List<Entry<Integer, List<LogRecord>>>> partitions = new ArrayList<>();
+        for(int i = 0; i < threads; i ++) {
+            partitions.add(new ArrayList<>());
+        }
+        for(Entry<Integer, List<LogRecord>> entry : la.pageLogs.entrySet()) {
+            partitions.get(entry.getKey() % threads).add(entry);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for(List<Entry<Integer, List<LogRecord>>> partition : partitions) {
+                futures.add(pool.submit(() -> {
+                    for(Entry<Integer, List<LogRecord>> entry : partition) {
+                        redoPage(pc, entry.getKey(), entry.getValue());
                     }
-                    logCache.get(xid).add(log);
+                }));
+            }
+            // 所有redo完成后才能开始undo
+            for(Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            Panic.panic(e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // LSN不大于PageLSN的日志已经作用在磁盘上的页面中, 不需要重做
+    private static void redoPage(PageCache pc, int pgno, List<LogRecord> logs) {
+        Page pg = null;
+        try {
+            pg = pc.getPage(pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            long pageLSN = PageX.getLSN(pg);
+            // 页面已经比最后一条日志新, 整页跳过
+            if(logs.get(logs.size()-1).lsn <= pageLSN) {
+                return;
+            }
+            for(LogRecord r : logs) {
+                if(r.lsn <= pageLSN) {
+                    continue;
                 }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
+                if(isInsertLog(r.log)) {
+                    doInsertLog(pg, r.log, REDO);
+                } else {
+                    doUpdateLog(pg, r.log, REDO);
                 }
+                PageX.setLSN(pg, r.lsn);
             }
+        } finally {
+            pg.release();
         }
+    }
 
+    private static void undoTranscations(TransactionManager tm, PageCache pc, LogAnalysis la) {
         // 对所有active log进行倒序undo
-        for(Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-            List<byte[]> logs = entry.getValue();
+        for(Entry<Long, List<SubArray>> entry : la.activeLogs.entrySet()) {
+            List<SubArray> logs = entry.getValue();
             for (int i = logs.size()-1; i >= 0; i --) {
-                byte[] log = logs.get(i);
-                if(isInsertLog(log)) {
-                    doInsertLog(pc, log, UNDO);
-                } else {
-                    doUpdateLog(pc, log, UNDO);
+                SubArray log = logs.get(i);
+                Page pg = null;
+                try {
+                    pg = pc.getPage(getPgno(log));
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+                try {
+                    if(isInsertLog(log)) {
+                        doInsertLog(pg, log, UNDO);
+                    } else {
+                        doUpdateLog(pg, log, UNDO);
+                    }
+                } finally {
+                    pg.release();
                 }
             }
             tm.abort(entry.getKey());
         }
     }
 
-    private static boolean isInsertLog(byte[] log) {
-        return log[0] == LOG_TYPE_INSERT;
+    private static int getPgno(SubArray log) {
+        if(isInsertLog(log)) {
+            return Parser.parseInt(log.raw, log.start+OF_INSERT_PGNO);
+        }
+        return (int)(Parser.parseLong(log.raw, log.start+OF_UPDATE_UID) >>> 32);
+    }
+
+    private static boolean isInsertLog(SubArray log) {
+        return log.raw[log.start+OF_TYPE] == LOG_TYPE_INSERT;
+    }
+
+    private static boolean isCommitLog(SubArray log) {
+        return log.raw[log.start+OF_TYPE] == LOG_TYPE_COMMIT;
+    }
+
+    public static byte[] commitLog(long xid) {
+        byte[] log = new byte[OF_XID+8];
+        log[OF_TYPE] = LOG_TYPE_COMMIT;
+        System.arraycopy(Parser.long2Byte(xid), 0, log, OF_XID, 8);
+        return log;
     }
 
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
@@ -169,54 +316,117 @@ public class Recover {
     private static final int OF_UPDATE_UID = OF_XID+8;
     private static final int OF_UPDATE_RAW = OF_UPDATE_UID+8;
 
+    // [LogType] [XID] [UID] [RangeCount] [Range1] ... [RangeN]
+    // Range: [Offset] [Length] [OldBytes] [NewBytes]
+    // RangeCount, Offset, Length 均为2字节, Offset为相对DataItem起点的偏移
+    private static final int OF_UPDATE_RANGE_COUNT = OF_UPDATE_UID+8;
+    private static final int OF_UPDATE_RANGES = OF_UPDATE_RANGE_COUNT+2;
+    private static final int LEN_RANGE_HEADER = 4;
+
+    // 只记录DataItem中被修改的区间,例如setXmax只会记录8字节的新旧值,而不是整个DataItem两次
     public static byte[] updateLog(long xid, DataItem di) {
-        byte[] logType = {LOG_TYPE_UPDATE};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] uidRaw = Parser.long2Byte(di.getUid());
         byte[] oldRaw = di.getOldRaw();
         SubArray raw = di.getRaw();
-        byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
-        return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
+
+        // 找出新旧镜像不同的区间,间隔很小的相邻区间合并,省掉一个区间头
+        List<int[]> ranges = new ArrayList<>();
+        int[] cur = null;
+        int size = OF_UPDATE_RANGES;
+        // oldRaw可能比dataitem长, 以raw的长度为准
+        int rawLength = raw.end - raw.start;
+        for(int i = 0; i < rawLength; i ++) {
+            if(oldRaw[i] == raw.raw[raw.start+i]) continue;
+            if(cur != null && (i - cur[1]) * 2 <= LEN_RANGE_HEADER) {
+                size += (i + 1 - cur[1]) * 2;
+                cur[1] = i + 1;
+            } else {
+                cur = new int[] {i, i + 1};
+                ranges.add(cur);
+                size += LEN_RANGE_HEADER + 2;
+            }
+        }
+
+        byte[] log = new byte[size];
+        log[OF_TYPE] = LOG_TYPE_UPDATE_DELTA;
+        System.arraycopy(Parser.long2Byte(xid), 0, log, OF_XID, 8);
+        System.arraycopy(Parser.long2Byte(di.getUid()), 0, log, OF_UPDATE_UID, 8);
+        System.arraycopy(Parser.short2Byte((short)ranges.size()), 0, log, OF_UPDATE_RANGE_COUNT, 2);
+        int pos = OF_UPDATE_RANGES;
+        for(int[] range : ranges) {
+            int length = range[1] - range[0];
+            System.arraycopy(Parser.short2Byte((short)range[0]), 0, log, pos, 2);
+            System.arraycopy(Parser.short2Byte((short)length), 0, log, pos+2, 2);
+            pos += LEN_RANGE_HEADER;
+            System.arraycopy(oldRaw, range[0], log, pos, length);
+            pos += length;
+            System.arraycopy(raw.raw, raw.start+range[0], log, pos, length);
+            pos += length;
+        }
+        return log;
     }
 
-    private static UpdateLogInfo parseUpdateLog(byte[] log) {
+    // 修改页面的FSO, 记作页面偏移0处2字节的紧凑update日志, 重做时按日志顺序覆盖FSO
+    public static byte[] fsoLog(long xid, Page pg, short fso) {
+        byte[] log = new byte[OF_UPDATE_RANGES + LEN_RANGE_HEADER + 4];
+        log[OF_TYPE] = LOG_TYPE_UPDATE_DELTA;
+        System.arraycopy(Parser.long2Byte(xid), 0, log, OF_XID, 8);
+        System.arraycopy(Parser.long2Byte(Types.addressToUid(pg.getPageNumber(), (short)0)), 0, log, OF_UPDATE_UID, 8);
+        System.arraycopy(Parser.short2Byte((short)1), 0, log, OF_UPDATE_RANGE_COUNT, 2);
+        int pos = OF_UPDATE_RANGES;
+        System.arraycopy(Parser.short2Byte((short)0), 0, log, pos, 2);
+        System.arraycopy(Parser.short2Byte((short)2), 0, log, pos+2, 2);
+        pos += LEN_RANGE_HEADER;
+        System.arraycopy(Parser.short2Byte(PageX.getFSO(pg)), 0, log, pos, 2);
+        System.arraycopy(Parser.short2Byte(fso), 0, log, pos+2, 2);
+        return log;
+    }
+
+    private static UpdateLogInfo parseUpdateLog(SubArray log) {
         UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+        li.xid = Parser.parseLong(log.raw, log.start+OF_XID);
+        long uid = Parser.parseLong(log.raw, log.start+OF_UPDATE_UID);
         li.offset = (short)(uid & ((1L << 16) - 1));
         uid >>>= 32;
         li.pgno = (int)(uid & ((1L << 32) - 1));
-        int length = (log.length - OF_UPDATE_RAW) / 2;
-        li.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW+length);
-        li.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW+length, OF_UPDATE_RAW+length*2);
+
+        if(log.raw[log.start+OF_TYPE] == LOG_TYPE_UPDATE) {
+            // 旧的完整镜像格式
+            int length = (log.end - log.start - OF_UPDATE_RAW) / 2;
+            int rawStart = log.start+OF_UPDATE_RAW;
+            li.rangeOffsets = new short[] {0};
+            li.oldRaws = new SubArray[] {new SubArray(log.raw, rawStart, rawStart+length)};
+            li.newRaws = new SubArray[] {new SubArray(log.raw, rawStart+length, rawStart+length*2)};
+            return li;
+        }
+
+        int count = Parser.parseShort(log.raw, log.start+OF_UPDATE_RANGE_COUNT);
+        li.rangeOffsets = new short[count];
+        li.oldRaws = new SubArray[count];
+        li.newRaws = new SubArray[count];
+        int pos = log.start+OF_UPDATE_RANGES;
+        for(int i = 0; i < count; i ++) {
+            li.rangeOffsets[i] = Parser.parseShort(log.raw, pos);
+            int length = Parser.parseShort(log.raw, pos+2);
+            pos += LEN_RANGE_HEADER;
+            li.oldRaws[i] = new SubArray(log.raw, pos, pos+length);
+            pos += length;
+            li.newRaws[i] = new SubArray(log.raw, pos, pos+length);
+            pos += length;
+        }
         return li;
     }
 
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
-        int pgno;
-        short offset;
-        byte[] raw;
+    private static void doUpdateLog(Page pg, SubArray log, int flag) {
+        UpdateLogInfo xi = parseUpdateLog(log);
+        SubArray[] raws;
         if(flag == REDO) {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.newRaw;
+            raws = xi.newRaws;
         } else {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.oldRaw;
-        }
-        Page pg = null;
-        try {
-            pg = pc.getPage(pgno);
-        } catch (Exception e) {
-            Panic.panic(e);
+            raws = xi.oldRaws;
         }
-        try {
-            PageX.recoverUpdate(pg, raw, offset);
-        } finally {
-            pg.release();
+        // 各区间互不重叠,redo和undo都可以按顺序写回
+        for(int i = 0; i < raws.length; i ++) {
+            PageX.recoverUpdate(pg, raws[i], (short)(xi.offset + xi.rangeOffsets[i]));
         }
     }
 
@@ -226,37 +436,41 @@ public class Recover {
     private static final int OF_INSERT_RAW = OF_INSERT_OFFSET+2;
 
     public static byte[] insertLog(long xid, Page pg, byte[] raw) {
+        return insertLog(xid, pg.getPageNumber(), PageX.getFSO(pg), raw);
+    }
+
+    public static byte[] insertLog(long xid, int pgno, short offset, byte[] raw) {
         byte[] logTypeRaw = {LOG_TYPE_INSERT};
         byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
+        byte[] pgnoRaw = Parser.int2Byte(pgno);
+        byte[] offsetRaw = Parser.short2Byte(offset);
         return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
     }
 
-    private static InsertLogInfo parseInsertLog(byte[] log) {
+    // 在内存中撤销一条还没有写入日志文件的日志, 调用者持有相应的锁
+    static void undoLog(Page pg, byte[] log) {
+        SubArray sa = new SubArray(log, 0, log.length);
+        if(isInsertLog(sa)) {
+            doInsertLog(pg, sa, UNDO);
+        } else {
+            doUpdateLog(pg, sa, UNDO);
+        }
+    }
+
+    private static InsertLogInfo parseInsertLog(SubArray log) {
         InsertLogInfo li = new InsertLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
-        li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+        li.xid = Parser.parseLong(log.raw, log.start+OF_XID);
+        li.pgno = Parser.parseInt(log.raw, log.start+OF_INSERT_PGNO);
+        li.offset = Parser.parseShort(log.raw, log.start+OF_INSERT_OFFSET);
+        li.raw = new SubArray(log.raw, log.start+OF_INSERT_RAW, log.end);
         return li;
     }
 
-    private static void doInsertLog(PageCache pc, byte[] log, int flag) {
+    private static void doInsertLog(Page pg, SubArray log, int flag) {
         InsertLogInfo li = parseInsertLog(log);
-        Page pg = null;
-        try {
-            pg = pc.getPage(li.pgno);
-        } catch(Exception e) {
-            Panic.panic(e);
-        }
-        try {
-            if(flag == UNDO) {
-                DataItem.setDataItemRawInvalid(li.raw);
-            }
-            PageX.recoverInsert(pg, li.raw, li.offset);
-        } finally {
-            pg.release();
+        if(flag == UNDO) {
+            DataItem.setDataItemRawInvalid(li.raw);
         }
+        PageX.recoverInsert(pg, li.raw, li.offset);
     }
 }
@@ -0,0 +1,181 @@
+package backend.dm;
+
+import backend.dm.page.Page;
+import backend.dm.page.PageX;
+import backend.tm.TransactionManagerImpl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * @description:事务私有的日志缓冲
+ *
+ * vm开始读写事务时登记, 这个事务的insert和update日志先记在这里, 提交时和提交日志一起作为连续的一段写入日志文件。
+ * 日志写入之前涉及的页一直被引用, 不会被逐出写回, 页面上不会有日志文件中没有的修改。
+ * 插入只使用事务自己从PageIndex取出的页, 日志写入之前不放回, 其他事务不会插在它还没写入日志的dataitem之后,
+ * 崩溃时页面中不会留下空洞。
+ * 回滚时在内存中倒序撤销缓冲中的日志, 插入过的区域按撤销后的内容作为占位写入日志, 之后由vm的清理线程在没有旧读者后回收。
+ * 缓冲超过MAX_BYTES或引用的页超过MAX_PAGES时提前写入, 写入的部分在回滚时和不缓冲时一样留给可见性判断,
+ * 其中插入的dataitem不在任何行的版本链上, 回滚时通知dm, 由vm的清理线程扫描整个库找出它们。
+ **/
+class RedoBuffer {
+
+    static final int MAX_BYTES = 1 << 16;
+    static final int MAX_PAGES = 32;
+
+    final long xid;
+    private DataManagerImpl dm;
+    private List<byte[]> logs;
+    private List<Integer> pgnos;                // 每条日志所在的页
+    private List<Long> uids;                    // update日志对应的dataitem, insert日志为0
+    private Map<Integer, Page> pinned;          // 被引用住的页
+    private Map<Integer, Short> owned;          // 插入用的页 -> 取出时的FSO
+    private Page insertPage;                    // 当前插入的页
+    private int bytes;
+    private boolean spilled;                    // 提前写入过
+
+    RedoBuffer(DataManagerImpl dm, long xid) {
+        this.dm = dm;
+        this.xid = xid;
+        this.logs = new ArrayList<>();
+        this.pgnos = new ArrayList<>();
+        this.uids = new ArrayList<>();
+        this.pinned = new HashMap<>();
+        this.owned = new LinkedHashMap<>();
+    }
+
+    // 当前插入的页放得下size时返回它, 否则返回null
+    Page insertPage(int size) {
+        if(insertPage != null && PageX.getFreeSpace(insertPage) >= size) {
+            return insertPage;
+        }
+        return null;
+    }
+
+    // 占有从PageIndex取出的页, 接管调用者对它的引用
+    void own(Page pg) {
+        int pgno = pg.getPageNumber();
+        owned.put(pgno, PageX.getFSO(pg));
+        if(pinned.putIfAbsent(pgno, pg) != null) {
+            pg.release();
+        }
+        insertPage = pinned.get(pgno);
+    }
+
+    // 记下一条日志, 在页锁或dataitem的锁内调用, 不会在这里写入
+    void add(Page pg, long uid, byte[] log) throws Exception {
+        int pgno = pg.getPageNumber();
+        if(!pinned.containsKey(pgno)) {
+            pinned.put(pgno, dm.pc.getPage(pgno));
+        }
+        logs.add(log);
+        pgnos.add(pgno);
+        uids.add(uid);
+        bytes += log.length;
+    }
+
+    boolean isFull() {
+        return bytes >= MAX_BYTES || pinned.size() >= MAX_PAGES;
+    }
+
+    // 缓冲满了, 提前写入
+    void spill() {
+        spilled = true;
+        append();
+    }
+
+    // 在缓冲的日志之后加上提交日志一起写入
+    void commit() {
+        logs.add(Recover.commitLog(xid));
+        append();
+    }
+
+    // 写入缓冲中的日志, 用它们的LSN标记页面后再放开页面, 提交日志不对应页面
+    void append() {
+        if(logs.size() == 1) {
+            long lsn = dm.logger.log(logs.get(0));
+            if(!pgnos.isEmpty()) {
+                PageX.setLSN(pinned.get(pgnos.get(0)), lsn);
+            }
+        } else if(!logs.isEmpty()) {
+            long[] lsns = dm.logger.log(logs);
+            for(int i = 0; i < pgnos.size(); i ++) {
+                PageX.setLSN(pinned.get(pgnos.get(i)), lsns[i]);
+            }
+        }
+        releaseAll();
+    }
+
+    // 倒序撤销还没写入的日志, 只修改内存中的页面
+    void rollback() {
+        for(int i = logs.size() - 1; i >= 0; i --) {
+            Page pg = pinned.get(pgnos.get(i));
+            long uid = uids.get(i);
+            Lock lock = uid == 0 ? null : dm.latches.writeLock(uid);
+            if(lock != null) {
+                lock.lock();
+            } else {
+                pg.lock();
+            }
+            try {
+                Recover.undoLog(pg, logs.get(i));
+            } finally {
+                if(lock != null) {
+                    lock.unlock();
+                } else {
+                    pg.unlock();
+                }
+            }
+        }
+
+        List<byte[]> fills = new ArrayList<>();
+        List<Page> fillPages = new ArrayList<>();
+        for(Map.Entry<Integer, Short> e : owned.entrySet()) {
+            Page pg = pinned.get(e.getKey());
+            short start = e.getValue();
+            pg.lock();
+            try {
+                short fso = PageX.getFSO(pg);
+                if(fso > start) {
+                    byte[] raw = Arrays.copyOfRange(pg.getData(), start, fso);
+                    fills.add(Recover.insertLog(TransactionManagerImpl.SUPER_XID, e.getKey(), start, raw));
+                    fillPages.add(pg);
+                    dm.undonePages.add(e.getKey());
+                }
+            } finally {
+                pg.unlock();
+            }
+        }
+        if(spilled) {
+            dm.spilledAbort.set(true);
+        }
+        if(!fills.isEmpty()) {
+            long[] lsns = dm.logger.log(fills);
+            for(int i = 0; i < lsns.length; i ++) {
+                PageX.setLSN(fillPages.get(i), lsns[i]);
+            }
+        }
+        releaseAll();
+    }
+
+    private void releaseAll() {
+        for(int pgno : owned.keySet()) {
+            dm.pIndex.add(pgno, PageX.getFreeSpace(pinned.get(pgno)));
+        }
+        for(Page pg : pinned.values()) {
+            pg.release();
+        }
+        logs.clear();
+        pgnos.clear();
+        uids.clear();
+        pinned.clear();
+        owned.clear();
+        insertPage = null;
+        bytes = 0;
+    }
+}
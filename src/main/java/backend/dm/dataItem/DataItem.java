@@ -8,8 +8,6 @@ import backend.utils.Types;
 import com.google.common.primitives.Bytes;
 
 
-import java.util.Arrays;
-
 public interface DataItem {
     SubArray data();
     
@@ -19,9 +17,12 @@ public interface DataItem {
     void release();
 
     void lock();
+    boolean tryLock();
     void unlock();
     void rLock();
     void rUnLock();
+    long tryOptimisticRead();
+    boolean validate(long stamp);
 
     Page page();
     long getUid();
@@ -37,13 +38,23 @@ public interface DataItem {
     // 从页面的offset处解析处dataitem
     public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
         byte[] raw = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_SIZE, offset+DataItemImpl.OF_DATA));
+        short size = Parser.parseShort(raw, offset+DataItemImpl.OF_SIZE);
         short length = (short)(size + DataItemImpl.OF_DATA);
         long uid = Types.addressToUid(pg.getPageNumber(), offset);
-        return new DataItemImpl(new SubArray(raw, offset, offset+length), new byte[length], pg, uid, dm);
+        return new DataItemImpl(new SubArray(raw, offset, offset+length), pg, uid, dm);
     }
 
     public static void setDataItemRawInvalid(byte[] raw) {
         raw[DataItemImpl.OF_VALID] = (byte)1;
     }
+
+    // raw中可能连续存放着多个dataitem(批量插入), 全部设为非法
+    public static void setDataItemRawInvalid(SubArray raw) {
+        int pos = raw.start;
+        while(pos < raw.end) {
+            raw.raw[pos+DataItemImpl.OF_VALID] = (byte)1;
+            short size = Parser.parseShort(raw.raw, pos+DataItemImpl.OF_SIZE);
+            pos += DataItemImpl.OF_DATA + size;
+        }
+    }
 }
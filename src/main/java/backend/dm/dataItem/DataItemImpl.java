@@ -3,11 +3,9 @@ package backend.dm.dataItem;
 import backend.common.SubArray;
 import backend.dm.DataManagerImpl;
 import backend.dm.page.Page;
+import backend.dm.pagecache.PageCache;
 
 import java.util.Arrays;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  *
@@ -18,24 +16,28 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 public class DataItemImpl implements DataItem {
 
-    static final int OF_VALID = 0;
-    static final int OF_SIZE = 1;
-    static final int OF_DATA = 3;
+    public static final int OF_VALID = 0;
+    public static final int OF_SIZE = 1;
+    public static final int OF_DATA = 3;
+
+    // 对象本身和两个SubArray视图的大致大小, 数据本身已经算在页面里
+    public static final int SHALLOW_SIZE = 112;
+
+    // 每个线程一块前镜像缓冲区, dataitem的长度不会超过一页
+    // 同一线程同时修改多个dataitem时, 后面的dataitem单独分配
+    private static final ThreadLocal<byte[]> BEFORE_BUFFER = ThreadLocal.withInitial(() -> new byte[PageCache.PAGE_SIZE]);
 
     private SubArray raw;
-    private byte[] oldRaw;
-    private Lock rLock;
-    private Lock wLock;
-    private DataManagerImpl dm;
+    private SubArray data;      // [Data]部分的视图, 创建时生成一次, data()不再每次分配
+    private byte[] oldRaw;      // 前镜像, 只在before()到after()/unBefore()之间存在
+    private boolean pooled;     // oldRaw是否来自BEFORE_BUFFER
+    private DataManagerImpl dm; // 读写锁由dm的闩表按uid分段提供
     private long uid;
     private Page pg;
 
-    public DataItemImpl(SubArray raw, byte[] oldRaw, Page pg, long uid, DataManagerImpl dm) {
+    public DataItemImpl(SubArray raw, Page pg, long uid, DataManagerImpl dm) {
         this.raw = raw;
-        this.oldRaw = oldRaw;
-        ReadWriteLock lock = new ReentrantReadWriteLock();
-        rLock = lock.readLock();
-        wLock = lock.writeLock();
+        this.data = new SubArray(raw.raw, raw.start+OF_DATA, raw.end);
         this.dm = dm;
         this.uid = uid;
         this.pg = pg;
@@ -45,28 +47,50 @@ public class DataItemImpl implements DataItem {
         return raw.raw[raw.start+OF_VALID] == (byte)0;
     }
 
+    // 返回的SubArray由dataItem共享, 调用者不能修改它的start和end
     @Override
     public SubArray data() {
-        return new SubArray(raw.raw, raw.start+OF_DATA, raw.end);
+        return data;
     }
 
     @Override
     public void before() {
-        wLock.lock();
+        lock();
         pg.setDirty(true);
-        System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
+        int length = raw.end - raw.start;
+        byte[] buf = BEFORE_BUFFER.get();
+        if(buf != null) {
+            BEFORE_BUFFER.set(null);
+            pooled = true;
+        } else {
+            buf = new byte[length];
+            pooled = false;
+        }
+        System.arraycopy(raw.raw, raw.start, buf, 0, length);
+        oldRaw = buf;
     }
 
     @Override
     public void unBefore() {
-        System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
-        wLock.unlock();
+        System.arraycopy(oldRaw, 0, raw.raw, raw.start, raw.end - raw.start);
+        releaseOldRaw();
+        unlock();
     }
 
     @Override
     public void after(long xid) {
         dm.logDataItem(xid, this);
-        wLock.unlock();
+        releaseOldRaw();
+        unlock();
+    }
+
+    // 归还前镜像缓冲区, before和after/unBefore总在同一线程中调用
+    private void releaseOldRaw() {
+        if(pooled) {
+            BEFORE_BUFFER.set(oldRaw);
+        }
+        oldRaw = null;
+        pooled = false;
     }
 
     @Override
@@ -76,22 +100,38 @@ public class DataItemImpl implements DataItem {
 
     @Override
     public void lock() {
-        wLock.lock();
+        dm.latches.writeLock(uid).lock();
+    }
+
+    @Override
+    public boolean tryLock() {
+        return dm.latches.writeLock(uid).tryLock();
     }
 
     @Override
     public void unlock() {
-        wLock.unlock();
+        dm.latches.writeLock(uid).unlock();
     }
 
     @Override
     public void rLock() {
-        rLock.lock();
+        dm.latches.readLock(uid).lock();
     }
 
     @Override
     public void rUnLock() {
-        rLock.unlock();
+        dm.latches.readLock(uid).unlock();
+    }
+
+    // 乐观读, 返回0时说明有写者, 应改用rLock
+    @Override
+    public long tryOptimisticRead() {
+        return dm.latches.tryOptimisticRead(uid);
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return dm.latches.validate(uid, stamp);
     }
 
     @Override
@@ -104,6 +144,7 @@ public class DataItemImpl implements DataItem {
         return uid;
     }
 
+    // 只在before()到after()/unBefore()之间有效, 数组可能比dataitem长, 有效长度以getRaw()为准
     @Override
     public byte[] getOldRaw() {
         return oldRaw;
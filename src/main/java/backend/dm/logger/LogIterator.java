@@ -0,0 +1,145 @@
+package backend.dm.logger;
+
+import backend.common.SubArray;
+import backend.utils.Panic;
+import backend.utils.Parser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 顺序扫描日志文件的迭代器
+ *
+ * 通过一块较大的预读缓冲区批量读取文件，避免每条日志两次定位读取。
+ * 每条日志以SubArray的形式返回，指向缓冲区内该日志的[Data]部分，不做额外拷贝；
+ * 返回的SubArray只在下一次调用hasNext()/next()之前有效，需要保留的调用者自行拷贝。
+ * 使用定位读取，不会改变FileChannel的position，可以和日志的写入并发进行。
+ */
+public class LogIterator implements Iterator<SubArray> {
+
+    private static final int READ_AHEAD = 1 << 20;   // 预读缓冲区大小 1M
+
+    private FileChannel fc;
+    private long begin;             // 第一条日志的偏移
+    private long end;               // 迭代的文件边界，超过该位置的日志不会被读取
+
+    private byte[] buf;
+    private long bufOffset;         // buf[0]对应的文件偏移
+    private int bufLimit;           // buf中的有效字节数
+
+    private long position;          // 下一条待解析日志的偏移
+    private long current;           // 最近一次返回的日志的偏移
+    private SubArray slice;         // 复用的返回对象
+    private boolean fetched;        // hasNext是否已经预取了下一条日志
+
+    LogIterator(FileChannel fc, long begin, long end) {
+        this.fc = fc;
+        this.begin = begin;
+        this.end = end;
+        this.buf = new byte[READ_AHEAD];
+        this.slice = new SubArray(buf, 0, 0);
+        rewind();
+    }
+
+    // 回到第一条日志，已经读入缓冲区的内容可以继续复用
+    public void rewind() {
+        position = begin;
+        current = begin;
+        fetched = false;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if(!fetched) {
+            fetched = fetch();
+        }
+        return fetched;
+    }
+
+    @Override
+    public SubArray next() {
+        if(!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        fetched = false;
+        return slice;
+    }
+
+    // 最近一次返回的日志在文件中的偏移
+    public long current() {
+        return current;
+    }
+
+    // 最后一条合法日志之后的偏移，遍历结束后即为日志的合法长度
+    public long position() {
+        return position;
+    }
+
+    // 解析position处的日志，校验失败或者到达边界时返回false
+    private boolean fetch() {
+        if(position + LoggerImpl.OF_DATA >= end) {
+            return false;
+        }
+        if(!fill(position, LoggerImpl.OF_DATA)) {
+            return false;
+        }
+        int start = (int)(position - bufOffset);
+        int size = Parser.parseInt(buf, start + LoggerImpl.OF_SIZE);
+        // 日志至少有一个类型字节, 长度为0的是文件扩展后没有写入的部分
+        if(size <= 0 || position + LoggerImpl.OF_DATA + size > end) {
+            return false;
+        }
+        if(!fill(position, LoggerImpl.OF_DATA + size)) {
+            return false;
+        }
+        // fill可能移动了缓冲区，重新计算起点
+        start = (int)(position - bufOffset);
+        int dataStart = start + LoggerImpl.OF_DATA;
+        int checkSum1 = LoggerImpl.logChecksum(buf, dataStart, dataStart + size);
+        int checkSum2 = Parser.parseInt(buf, start + LoggerImpl.OF_CHECKSUM);
+        if(checkSum1 != checkSum2) {
+            return false;
+        }
+        slice.raw = buf;
+        slice.start = dataStart;
+        slice.end = dataStart + size;
+        current = position;
+        position += LoggerImpl.OF_DATA + size;
+        return true;
+    }
+
+    // 保证文件中[pos, pos+len)这一段已经在缓冲区中
+    private boolean fill(long pos, int len) {
+        if(pos >= bufOffset && pos + len <= bufOffset + bufLimit) {
+            return true;
+        }
+        // 把缓冲区中尚未消费的部分移到头部，再从文件中继续读
+        int keep = 0;
+        if(pos >= bufOffset && pos < bufOffset + bufLimit) {
+            keep = (int)(bufOffset + bufLimit - pos);
+            System.arraycopy(buf, (int)(pos - bufOffset), buf, 0, keep);
+        }
+        if(len > buf.length) {
+            buf = Arrays.copyOf(buf, len);
+        }
+        bufOffset = pos;
+        bufLimit = keep;
+        ByteBuffer bb = ByteBuffer.wrap(buf, keep, buf.length - keep);
+        try {
+            while(bufLimit < len) {
+                int n = fc.read(bb, bufOffset + bufLimit);
+                if(n < 0) {
+                    return false;
+                }
+                bufLimit += n;
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        return true;
+    }
+}
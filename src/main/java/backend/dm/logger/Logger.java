@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.List;
 import common.Error;
 /**
  * @author: Ccc
@@ -19,10 +20,16 @@ import common.Error;
  * @return:
  **/
 public interface Logger {
-    void log(byte[] data);
+    long log(byte[] data);
+    long[] log(List<byte[]> datas);
+    void flush(long lsn);
+    long flushAll();
+    long unflushed();
+    boolean isFlushed(long lsn);
     void truncate(long x) throws Exception;
     byte[] next();
     void rewind();
+    LogIterator iterator();
     void close();
 
     public static Logger create(String path) {
@@ -56,7 +63,9 @@ public interface Logger {
             Panic.panic(e);
         }
 
-        return new LoggerImpl(raf, fc, 0);
+        LoggerImpl lg = new LoggerImpl(raf, fc);
+        lg.init();
+        return lg;
     }
 
     public static Logger open(String path) {
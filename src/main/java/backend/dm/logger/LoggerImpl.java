@@ -1,5 +1,6 @@
 package backend.dm.logger;
 
+import backend.common.SubArray;
 import backend.utils.Panic;
 import backend.utils.Parser;
 import com.google.common.primitives.Bytes;
@@ -10,6 +11,7 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -19,43 +21,47 @@ import static com.google.common.primitives.Bytes.*;
  * 日志文件读写
  * 
  * 日志文件标准格式为：
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * XChecksum 为后续所有日志计算的Checksum，int类型
+ * [Reserved] [Log1] [Log2] ... [LogN] [BadTail]
+ * Reserved 4字节, 原来存放所有日志的XChecksum, 现在不再使用
+ * 写日志时不落盘, flush时一次force让之前写入的日志全部落盘。
+ * 崩溃时没有落盘的日志可能只写入了一部分, 也可能后面的写入了前面的没有, 打开时用每条日志自己的Checksum
+ * 找到第一条不完整的日志, 从它开始截掉; 落盘过的日志都是完整的, 一定在截掉的位置之前
  * 
  * 每条正确日志的格式为：
  * [Size] [Checksum] [Data]
  * Size 4字节int 标识Data长度
- * Checksum 4字节int
+ * Checksum 4字节int, 从非零的初值开始, 依次计算Size的4个字节和Data。
+ * 初值和SEED都是奇数, 全零的Data算出的校验和也不为0, 只写入了Size、Checksum和Data还是零的残缺日志不会通过校验
  */
 public class LoggerImpl implements Logger {
 
     private static final int SEED = 13331;
+    private static final int CHECKSUM_INIT = 1;
 
-    private static final int OF_SIZE = 0;
-    private static final int OF_CHECKSUM = OF_SIZE + 4;
-    private static final int OF_DATA = OF_CHECKSUM + 4;
+    static final int OF_SIZE = 0;
+    static final int OF_CHECKSUM = OF_SIZE + 4;
+    static final int OF_DATA = OF_CHECKSUM + 4;
+
+    // 第一条日志的偏移,前四位保留
+    static final int OF_FIRST_LOG = 4;
     
     public static final String LOG_SUFFIX = ".log";
 
     private RandomAccessFile file;
     private FileChannel fc;
     private Lock lock;
+    private Lock flushLock;     // 同一时刻只有一个线程fsync
 
-    private long position;  // 当前日志指针的位置
     private long fileSize;  // 初始化时记录，log操作不更新
-    private int xChecksum;
+    private LogIterator iter;   // next()和rewind()使用的迭代器
+    private volatile long end;      // 已写入的日志的末尾
+    private volatile long flushed;  // 已经force到磁盘的日志的末尾
 
     LoggerImpl(RandomAccessFile raf, FileChannel fc) {
         this.file = raf;
         this.fc = fc;
         lock = new ReentrantLock();
-    }
-
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
-        this.file = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
-        lock = new ReentrantLock();
+        flushLock = new ReentrantLock();
     }
 
     void init() {
@@ -69,34 +75,19 @@ public class LoggerImpl implements Logger {
             Panic.panic(Error.BadLogFileException);
         }
 
-        ByteBuffer raw = ByteBuffer.allocate(4);
-        try {
-            fc.position(0);
-            fc.read(raw);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        int xChecksum = Parser.parseInt(raw.array());
         this.fileSize = size;
-        this.xChecksum = xChecksum;
 
         checkAndRemoveTail();
     }
 
     // 检查并移除bad tail
+    // 迭代器在第一条校验失败的日志处停下, 它和之后的内容都没有落盘过, 一并截掉
     private void checkAndRemoveTail() {
-        rewind();
-
-        int xCheck = 0;
-        while(true) {
-            byte[] log = internNext();
-            if(log == null) break;
-            //遍历整个文件,并计算校验和
-            xCheck = calChecksum(xCheck, log);
-        }
-        if(xCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException);
+        LogIterator it = new LogIterator(fc, OF_FIRST_LOG, fileSize);
+        while(it.hasNext()) {
+            it.next();
         }
+        long position = it.position();
 
         try {
             truncate(position);
@@ -108,50 +99,141 @@ public class LoggerImpl implements Logger {
         } catch (IOException e) {
             Panic.panic(e);
         }
-        rewind();
+        fileSize = position;
+        end = position;
+        flushed = position;
+        iter = new LogIterator(fc, OF_FIRST_LOG, fileSize);
     }
 
-    //如果传进来的是xCheckSum,
-    //那么这个方法就是在计算日志文件的检验和,如果传进来的是0,那么就是在计算这一条日志的校验和
-    private int calChecksum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
+    // 一条日志的校验和, 覆盖[Size]和[Data]
+    static int logChecksum(byte[] raw, int start, int end) {
+        int size = end - start;
+        int xCheck = CHECKSUM_INIT;
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            xCheck = xCheck * SEED + (byte)(size >>> shift);
+        }
+        return calChecksum(xCheck, raw, start, end);
+    }
+
+    static int calChecksum(int xCheck, byte[] raw, int start, int end) {
+        for (int i = start; i < end; i ++) {
+            xCheck = xCheck * SEED + raw[i];
         }
         return xCheck;
     }
 
+    // 返回这条日志的LSN,也就是它在日志文件中的偏移
+    // 只写入文件不落盘, 需要持久化时调用flush
     @Override
-    public void log(byte[] data) {
+    public long log(byte[] data) {
         //将数据包裹为日志形式,也就是[Size][Checksum][Data]
         byte[] log = wrapLog(data);
         ByteBuffer buf = ByteBuffer.wrap(log);
         lock.lock();
         try {
-            fc.position(fc.size());
-            fc.write(buf);
+            long lsn = end;
+            while(buf.hasRemaining()) {
+                fc.write(buf, lsn + buf.position());
+            }
+            end = lsn + log.length;
+            return lsn;
         } catch(IOException e) {
             Panic.panic(e);
+            return 0;
         } finally {
             lock.unlock();
         }
-        updateXChecksum(log);
     }
 
-    //修改日志文件的检验和
-    private void updateXChecksum(byte[] log) {
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    // 把多条日志作为连续的一段一次写入, 返回每条日志的LSN
+    @Override
+    public long[] log(List<byte[]> datas) {
+        long[] lsns = new long[datas.size()];
+        byte[][] logs = new byte[datas.size()][];
+        int total = 0;
+        for(int i = 0; i < logs.length; i ++) {
+            logs[i] = wrapLog(datas.get(i));
+            lsns[i] = total;
+            total += logs[i].length;
+        }
+        byte[] chunk = new byte[total];
+        for(int i = 0, pos = 0; i < logs.length; i ++) {
+            System.arraycopy(logs[i], 0, chunk, pos, logs[i].length);
+            pos += logs[i].length;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(chunk);
+        lock.lock();
+        try {
+            long start = end;
+            while(buf.hasRemaining()) {
+                fc.write(buf, start + buf.position());
+            }
+            end = start + total;
+            for(int i = 0; i < lsns.length; i ++) {
+                lsns[i] += start;
+            }
+            return lsns;
+        } catch(IOException e) {
+            Panic.panic(e);
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 保证LSN为lsn的日志已经持久化,页面写回前调用以满足WAL
+    @Override
+    public void flush(long lsn) {
+        if(lsn < flushed) {
+            return;
+        }
+        sync();
+    }
+
+    // 让已写入的日志全部持久化, 返回持久化的日志的末尾
+    @Override
+    public long flushAll() {
+        if(end == flushed) {
+            return flushed;
+        }
+        return sync();
+    }
+
+    // LSN为lsn的日志是否已经持久化
+    @Override
+    public boolean isFlushed(long lsn) {
+        return lsn < flushed;
+    }
+
+    // 已写入但还没有持久化的日志字节数
+    @Override
+    public long unflushed() {
+        return end - flushed;
+    }
+
+    // 一次fsync覆盖调用时已写入的所有日志, 等锁期间其他线程的fsync可能已经覆盖了这些日志
+    private long sync() {
+        flushLock.lock();
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
+            // end之前的日志都已写入文件, force之后全部落盘
+            long target = end;
+            if(target <= flushed) {
+                return flushed;
+            }
             fc.force(false);
+            flushed = target;
+            return target;
         } catch(IOException e) {
             Panic.panic(e);
+            return 0;
+        } finally {
+            flushLock.unlock();
         }
     }
 
     private byte[] wrapLog(byte[] data) {
         //通过检验和函数计算日志的校验和,并解析成字节数组
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
+        byte[] checksum = Parser.int2Byte(logChecksum(data, 0, data.length));
         //size就是data的长度
         byte[] size = Parser.int2Byte(data.length);
         //data的数据,本身就不带checksum,和size,因为这些都是计算出来,所以才要重新封装
@@ -169,67 +251,42 @@ public class LoggerImpl implements Logger {
         }
     }
 
-    private byte[] internNext() {
-        //这里的position是专门为了遍历,不是fc.position,position初始化就是4
-        //position + OF_DATA = 4+0+4+4 如果>fileSize的话,那么就可以认为没有数据
-        if(position + OF_DATA >= fileSize) {
-            return null;
-        }
-        //开辟四个字节缓冲区
-        ByteBuffer tmp = ByteBuffer.allocate(4);
-        try {
-            fc.position(position);
-            //读取当前日志的size
-            fc.read(tmp);
-        } catch(IOException e) {
-            Panic.panic(e);
-        }
-        //解析并转为int
-        int size = Parser.parseInt(tmp.array());
-        if(position + size + OF_DATA > fileSize) {
-            return null;
-        }
-        //开辟一个4+4+data.size的空间,读取checkSum和data,因为read完后,position已经变成8了
-
-        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+    @Override
+    public byte[] next() {
+        lock.lock();
         try {
-            fc.position(position);
-            //读取当前日志
-            fc.read(buf);
-        } catch(IOException e) {
-            Panic.panic(e);
-        }
-
-        byte[] log = buf.array();
-        //计算一下当前日志的校验和
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        //读取当前日志的校验和
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
-        //比较一下,如果错误,则不是正确的日志形式
-        if(checkSum1 != checkSum2) {
-            return null;
+            if(!iter.hasNext()) return null;
+            SubArray log = iter.next();
+            return Arrays.copyOfRange(log.raw, log.start, log.end);
+        } finally {
+            lock.unlock();
         }
-        //重置一下position
-        position += log.length;
-        return log;
     }
 
     @Override
-    public byte[] next() {
+    public void rewind() {
         lock.lock();
         try {
-            byte[] log = internNext();
-            if(log == null) return null;
-            return Arrays.copyOfRange(log, OF_DATA, log.length);
+            //日志文件前四位保留,所以第一个日志的偏移是4
+            if(iter == null) {
+                iter = new LogIterator(fc, OF_FIRST_LOG, fileSize);
+            } else {
+                iter.rewind();
+            }
         } finally {
             lock.unlock();
         }
     }
 
     @Override
-    public void rewind() {
-        //日志文件前四位是总的校验和,字节数为4,所以第一个日志的size是4
-        position = 4;
+    public LogIterator iterator() {
+        long end = 0;
+        try {
+            end = fc.size();
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        return new LogIterator(fc, OF_FIRST_LOG, end);
     }
 
     @Override
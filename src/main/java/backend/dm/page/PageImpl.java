@@ -3,6 +3,7 @@ package backend.dm.page;
 
 
 
+import backend.common.LatchTable;
 import backend.dm.pagecache.PageCache;
 
 import java.util.concurrent.locks.Lock;
@@ -15,6 +16,14 @@ import java.util.concurrent.locks.ReentrantLock;
  * @DATE: 2023/8/4 11:22
  */
 public class PageImpl implements Page {
+    // 所有页共用的分段锁, 按页号映射, 代替每页一把锁; 页锁需要可重入, 所以用ReentrantLock
+    private static final Lock[] LOCKS = new Lock[Integer.highestOneBit(LatchTable.defaultStripes() - 1) << 1];
+    static {
+        for(int i = 0; i < LOCKS.length; i ++) {
+            LOCKS[i] = new ReentrantLock();
+        }
+    }
+
     private int pageNumber;         //页号
 
     private byte[] data;            //页的数据
@@ -26,8 +35,6 @@ public class PageImpl implements Page {
      */
     private boolean dirty;          //是否是脏页面
 
-    private Lock lock;
-
     /*
     这里保存了一个 PageCache（还未定义）的引用，用来方便在拿到 Page 的引用时可以快速对这个页面的缓存进行释放操作。
      */
@@ -37,17 +44,16 @@ public class PageImpl implements Page {
         this.pageNumber = pageNumber;
         this.data = data;
         this.pc = pc;
-        lock = new ReentrantLock();
     }
 
     @Override
     public void lock() {
-        lock.lock();
+        LOCKS[pageNumber & (LOCKS.length - 1)].lock();
     }
 
     @Override
     public void unlock() {
-        lock.unlock();
+        LOCKS[pageNumber & (LOCKS.length - 1)].unlock();
     }
 
     @Override
@@ -1,5 +1,6 @@
 package backend.dm.page;
 
+import backend.common.SubArray;
 import backend.dm.pagecache.PageCache;
 import backend.utils.Parser;
 
@@ -8,13 +9,15 @@ import java.util.Arrays;
 /**
  * PageX管理普通页
  * 普通页结构
- * [FreeSpaceOffset] [Data]
+ * [FreeSpaceOffset] [PageLSN] [Data]
  * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * PageLSN: 8字节 最后一条作用在该页上的日志的LSN(日志在日志文件中的偏移)
  */
 public class PageX {
     
     private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
+    private static final short OF_LSN = OF_FREE + 2;
+    public static final short OF_DATA = OF_LSN + 8;
     public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
 
     public static byte[] initRaw() {
@@ -27,7 +30,25 @@ public class PageX {
         //setFSO(pg.getData(), (short)(offset + raw.length));
         // 源数组、源数组的起始位置、目标数组、目标数组的起始位置以及要复制的元素数量。
         // raw是修改后的data,那么将offset+raw.length的位置就是空闲位置,然后把这位置记录到修改后的raw里
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, 2);
+    }
+
+    // 获取pg的PageLSN
+    public static long getLSN(Page pg) {
+        return Parser.parseLong(pg.getData(), OF_LSN);
+    }
+
+    // 更新pg的PageLSN, PageLSN只会增大
+    public static void setLSN(Page pg, long lsn) {
+        pg.lock();
+        try {
+            if(lsn > getLSN(pg)) {
+                pg.setDirty(true);
+                System.arraycopy(Parser.long2Byte(lsn), 0, pg.getData(), OF_LSN, 8);
+            }
+        } finally {
+            pg.unlock();
+        }
     }
 
     // 获取pg的FSO
@@ -40,15 +61,28 @@ public class PageX {
         return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
     }
 
-    // 将raw插入pg中，返回插入位置
-    public static short insert(Page pg, byte[] raw) {
+    // 获取raw中从base开始的页面的FSO, 用于扫描时解析不在缓存中的页
+    public static short getFSO(byte[] raw, int base) {
+        return Parser.parseShort(raw, base+OF_FREE);
+    }
+
+    // 将raw插入pg中，并用对应insert日志的lsn标记页面，返回插入位置
+    public static short insert(Page pg, byte[] raw, long lsn) {
         pg.setDirty(true);
         short offset = getFSO(pg.getData());
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
         setFSO(pg.getData(), (short)(offset + raw.length));
+        setLSN(pg, lsn);
         return offset;
     }
 
+    // 回收页尾空间, 把FSO前移到fso, 并用对应日志的lsn标记页面
+    public static void rewindFSO(Page pg, short fso, long lsn) {
+        pg.setDirty(true);
+        setFSO(pg.getData(), fso);
+        setLSN(pg, lsn);
+    }
+
     // 获取页面的空闲空间大小
     public static int getFreeSpace(Page pg) {
         return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
@@ -57,19 +91,20 @@ public class PageX {
 
     //TODO 这两个方法不太理解
     // 将raw插入pg中的offset位置，并将pg的offset设置为较大的offset
-    public static void recoverInsert(Page pg, byte[] raw, short offset) {
+    public static void recoverInsert(Page pg, SubArray raw, short offset) {
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        int length = raw.end - raw.start;
+        System.arraycopy(raw.raw, raw.start, pg.getData(), offset, length);
 
         short rawFSO = getFSO(pg.getData());
-        if(rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short)(offset+raw.length));
+        if(rawFSO < offset + length) {
+            setFSO(pg.getData(), (short)(offset+length));
         }
     }
 
     // 将raw插入pg中的offset位置，不更新update
-    public static void recoverUpdate(Page pg, byte[] raw, short offset) {
+    public static void recoverUpdate(Page pg, SubArray raw, short offset) {
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        System.arraycopy(raw.raw, raw.start, pg.getData(), offset, raw.end - raw.start);
     }
 }
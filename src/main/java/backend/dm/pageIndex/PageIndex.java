@@ -71,4 +71,21 @@ public class PageIndex {
         }
     }
 
+    // 按页号取出一页, 调用者知道它加入时的空闲空间, 只查找对应的区间
+    // 页面正在被插入(已被select取出)时返回null
+    public PageInfo take(int pgno, int freeSpace) {
+        lock.lock();
+        try {
+            List<PageInfo> list = lists[freeSpace / THRESHOLD];
+            for(int i = 0; i < list.size(); i ++) {
+                if(list.get(i).pgno == pgno) {
+                    return list.remove(i);
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
 }
@@ -1,5 +1,7 @@
 package backend.dm.pagecache;
 
+import backend.common.MemoryBudget;
+import backend.dm.logger.Logger;
 import backend.dm.page.Page;
 import backend.utils.Panic;
 import common.Error;
@@ -21,14 +23,24 @@ public interface PageCache {
     public static final int PAGE_SIZE = 1 << 13;//1092
     int newPage(byte[] initData);
     Page getPage(int pgno) throws Exception;
+    Page getPageIfCached(int pgno);
+    int readPages(int pgno, byte[] buf, int count, int[] stamps);
+    // 页面写回文件的次数, 按页号分段计数, 用于判断readPages读到的内容是否已经过时
+    int writeStamp(int pgno);
     void close();
     void release(Page page);
+    // 把n个页面引用记到当前线程上, n为负数时移走, 在一个线程中取页、在另一个线程中释放时使用
+    void transferPins(int n);
 
     void truncateByBgno(int maxPgno);
     int getPageNumber();
     void flushPage(Page pg);
+    // 设置页面写回前需要等待的日志, 保证页面落盘前对应日志已持久化
+    void setLogger(Logger lg);
+    // 把日志已经落盘的暂缓写回的页写回
+    void writeDeferred();
 
-    public static PageCacheImpl create(String path, long memory) {
+    public static PageCacheImpl create(String path, MemoryBudget budget) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         try {
             if(!f.createNewFile()) {
@@ -49,10 +61,10 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return new PageCacheImpl(raf, fc, budget);
     }
 
-    public static PageCacheImpl open(String path, long memory) {
+    public static PageCacheImpl open(String path, MemoryBudget budget) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         if(!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -69,6 +81,6 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return new PageCacheImpl(raf, fc, budget);
     }
 }
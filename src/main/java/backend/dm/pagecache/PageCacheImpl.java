@@ -1,8 +1,11 @@
 package backend.dm.pagecache;
 
 import backend.common.AbstractCache;
+import backend.common.MemoryBudget;
+import backend.dm.logger.Logger;
 import backend.dm.page.Page;
 import backend.dm.page.PageImpl;
+import backend.dm.page.PageX;
 import backend.utils.Panic;
 import common.Error;
 
@@ -10,7 +13,11 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -23,15 +30,21 @@ import java.util.concurrent.locks.ReentrantLock;
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
     private static final int MEM_MIN_LIM = 10;
+    private static final int PAGE_OVERHEAD = 64;   // PageImpl对象本身的大致大小
+    private static final int DEFERRED_MAX = 128;   // 暂缓写回的页的上限, 超过时逐出的页立即写回
+    private static final int STAMP_STRIPES = 4096; // 写回计数的分段数, 必须是2的幂
     public static final String DB_SUFFIX = ".db";
     RandomAccessFile file;
     FileChannel fc;
     private Lock fileLock;
     private AtomicInteger pageNumbers;
+    private Logger logger;
+    private Map<Integer, Page> deferred;    // 逐出时日志还没落盘的脏页, 在fileLock下访问, 日志落盘后由writeDeferred写回
+    private AtomicIntegerArray stamps;      // 每段页面的写回次数, 在fileLock下写回文件后增加
 
-    public PageCacheImpl(RandomAccessFile file, FileChannel fileChannel,int maxResource) {
-        super(maxResource);
-        if(maxResource < MEM_MIN_LIM) {
+    public PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, MemoryBudget budget) {
+        super(budget);
+        if(budget.limit() / (PAGE_SIZE + PAGE_OVERHEAD) < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
         long length = 0;
@@ -43,6 +56,8 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         this.file = file;
         this.fc = fileChannel;
         this.fileLock = new ReentrantLock();
+        this.deferred = new HashMap<>();
+        this.stamps = new AtomicIntegerArray(STAMP_STRIPES);
 
         //刚开始不懂为什么会这样设计,想着如果这样设计,那么文件长度小于8k也就是8192的时候,页号不就为0吗
         //查了才知道,文件的length是以字节为单位,也就是说如果length等于1,那么文件就只有一字节
@@ -64,6 +79,11 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     }
 
 
+    @Override
+    protected long weigh(Page pg) {
+        return PAGE_SIZE + PAGE_OVERHEAD;
+    }
+
     //当资源不在缓存时,读取db文件的数据,并已页的形式返回
     @Override
     protected Page getFromFileForCache(long key) throws Exception {
@@ -73,6 +93,12 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
         fileLock.lock();
         try {
+            //暂缓写回的页比文件中的新, 直接放回缓存
+            Page pg = deferred.remove(pgno);
+            if(pg != null) {
+                fileLock.unlock();
+                return pg;
+            }
             //移动到对应的页,读8K的数据
             fc.position(offset);
             fc.read(buf);
@@ -85,22 +111,75 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     }
 
 
+    // 日志还没落盘的脏页先留在内存中, 不在这里强制刷日志, 写日志的事务不会因为逐出页面而等待fsync
     @Override
     protected void releaseFromCacheForFile(Page pg) {
         if(pg.isDirty()) {
+            if(defer(pg)) {
+                return;
+            }
             flush(pg);
             pg.setDirty(false);
         }
     }
 
+    private boolean defer(Page pg) {
+        int pgno = pg.getPageNumber();
+        if(logger == null || pgno == 1 || logger.isFlushed(PageX.getLSN(pg))) {
+            return false;
+        }
+        fileLock.lock();
+        try {
+            if(deferred.size() >= DEFERRED_MAX) {
+                return false;
+            }
+            deferred.put(pgno, pg);
+            return true;
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    // 写回日志已经落盘的暂缓页, 刷日志之后调用
+    @Override
+    public void writeDeferred() {
+        fileLock.lock();
+        try {
+            Iterator<Page> it = deferred.values().iterator();
+            while(it.hasNext()) {
+                Page pg = it.next();
+                if(!logger.isFlushed(PageX.getLSN(pg))) {
+                    continue;
+                }
+                ByteBuffer buf = ByteBuffer.wrap(pg.getData());
+                long offset = pageOffset(pg.getPageNumber());
+                while(buf.hasRemaining()) {
+                    fc.write(buf, offset + buf.position());
+                }
+                stamps.incrementAndGet(stripe(pg.getPageNumber()));
+                pg.setDirty(false);
+                it.remove();
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
     private void flush(Page pg) {
         int pgno = pg.getPageNumber();
+        // WAL: 普通页写回前, 作用在该页上的日志必须先持久化, 第一页不是PageX格式
+        if(logger != null && pgno != 1) {
+            logger.flush(PageX.getLSN(pg));
+        }
         long offset = pageOffset(pgno);
         ByteBuffer buf = ByteBuffer.wrap(pg.getData());
         fileLock.lock();
         try{
             fc.position(offset);
             fc.write(buf);
+            stamps.incrementAndGet(stripe(pgno));
         }catch (IOException e){
             Panic.panic(e);
         }finally {
@@ -115,9 +194,82 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         return get((long)pgno);
     }
 
+    // 页面已在缓存中时返回并增加引用, 否则返回null
+    // 暂缓写回的页文件中的内容是旧的, 放回缓存后返回
+    @Override
+    public Page getPageIfCached(int pgno) {
+        Page pg = getIfCached((long)pgno);
+        if(pg != null) {
+            return pg;
+        }
+        boolean isDeferred;
+        fileLock.lock();
+        try {
+            isDeferred = deferred.containsKey(pgno);
+        } finally {
+            fileLock.unlock();
+        }
+        if(!isDeferred) {
+            return null;
+        }
+        try {
+            return getPage(pgno);
+        } catch(Exception e) {
+            return null;
+        }
+    }
+
+    // 绕过缓存, 把从pgno开始的count个页直接读到buf中, 返回完整读到的页数
+    // 使用定位读取, 不影响fc的position
+    // 暂缓写回的页用内存中的内容覆盖, 在fileLock下读, 读完之前这些页不会被写回并移出
+    // stamps中记下读取时每页的写回计数, 之后计数变化说明读到的内容已经被写回的新版本替换
+    @Override
+    public int readPages(int pgno, byte[] buf, int count, int[] stamps) {
+        ByteBuffer bb = ByteBuffer.wrap(buf, 0, count * PAGE_SIZE);
+        long offset = pageOffset(pgno);
+        fileLock.lock();
+        try {
+            for(int i = 0; i < count; i ++) {
+                stamps[i] = this.stamps.get(stripe(pgno + i));
+            }
+            while(bb.hasRemaining()) {
+                int n = fc.read(bb, offset + bb.position());
+                if(n < 0) {
+                    break;
+                }
+            }
+            if(!deferred.isEmpty()) {
+                for(int i = 0; i < count; i ++) {
+                    Page pg = deferred.get(pgno + i);
+                    if(pg != null) {
+                        System.arraycopy(pg.getData(), 0, buf, i * PAGE_SIZE, PAGE_SIZE);
+                    }
+                }
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        } finally {
+            fileLock.unlock();
+        }
+        return bb.position() / PAGE_SIZE;
+    }
+
+    @Override
+    public int writeStamp(int pgno) {
+        return stamps.get(stripe(pgno));
+    }
+
+    private static int stripe(int pgno) {
+        return pgno & (STAMP_STRIPES - 1);
+    }
+
     @Override
     public void close() {
         super.close();
+        if(logger != null) {
+            logger.flushAll();
+            writeDeferred();
+        }
         try {
             fc.close();
             file.close();
@@ -140,12 +292,17 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     public void flushPage(Page pg) {
 
     }
+    @Override
+    public void setLogger(Logger lg) {
+        this.logger = lg;
+    }
+
     @Override
     public int getPageNumber() {
         return pageNumbers.intValue();
     }
 
     private static long pageOffset(int pgno) {
-        return (pgno-1) * PAGE_SIZE;
+        return (long)(pgno-1) * PAGE_SIZE;
     }
 }
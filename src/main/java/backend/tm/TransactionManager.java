@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Collection;
 
 /**
  * @PROJECT_NAME: HCDB
@@ -18,11 +19,16 @@ import java.nio.channels.FileChannel;
 public interface TransactionManager {
 
     long begin();//开启一个新事务
+    long nextXID();//下一个将要分配的XID, 不分配
     void commit(long xid);//提交一个事务
+    void commitAsync(long xid);//提交一个事务, 只修改内存中的状态, 不写文件
+    void commitDurable(Collection<Long> xids);//提交日志已经落盘, 把这些事务的状态写入文件, 不落盘
+    boolean isCommitDurable(long xid);//查询一个已提交事务的提交是否已经持久化
     void abort(long xid);//取消一个事务
     boolean isActive(long xid);//查询一个事务的状态是否是正在进行
     boolean isCommitted(long xid);//查询一个事务的状态是否是已提交
     boolean isAborted(long xid);//查询一个事务的状态是否是已取消
+    void abortActive();//恢复完成后把仍处于正在进行状态的事务标记为已取消
     void close();//关闭tm
 
     public static TransactionManagerImpl create(String path) {
@@ -56,7 +62,7 @@ public interface TransactionManager {
             Panic.panic(e);
         }
 
-        return new TransactionManagerImpl(raf, fc);
+        return new TransactionManagerImpl(raf, fc, f);
     }
 
     public static TransactionManagerImpl open(String path) {
@@ -77,7 +83,7 @@ public interface TransactionManager {
             Panic.panic(e);
         }
 
-        return new TransactionManagerImpl(raf, fc);
+        return new TransactionManagerImpl(raf, fc, f);
     }
 
 
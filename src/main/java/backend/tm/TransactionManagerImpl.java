@@ -4,16 +4,38 @@ import common.Error;
 import backend.utils.Panic;
 import backend.utils.Parser;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * @PROJECT_NAME: HCDB
  * @DESCRIPTION:事务实现类
+ * XID按块预留: 文件头记录的是已预留的最大XID(高水位), 每次预留XID_RESERVE个,
+ * 预留时把这一段状态预先写成已回滚并落盘, 然后begin只在内存中自增分配, 不再每次写两次盘。
+ * 崩溃后重新打开时从高水位之后继续分配, 预留了但没用到的XID保持已回滚状态。
+ * 所有XID的状态在打开时装入内存中的XidStatusTable, 状态查询只读内存, 不再访问文件。
+ * 压缩: 最早的正在进行的事务之前的XID状态都已确定, 超过COMPACT_THRESHOLD个时把这一段前缀从文件和内存中丢弃,
+ * 文件只保留基准XID和之后的状态, 基准之前的XID默认已提交, 已回滚的以区间列表的形式记录在文件头的摘要里。
+ * 压缩后的文件格式: [高水位|COMPACTED_FLAG 8][基准XID 8][区间数 4][区间 16*n][基准XID起的状态]
+ * 未压缩过的文件基准为1, 没有摘要, 与原格式相同。
+ * 组提交: commit/abort先写入状态并取得一个写序号, 再等待该序号落盘。
+ * 同一时刻只有一个线程执行fsync, 它把此前所有已写入的状态一起刷盘, 等待中的提交者发现自己已被覆盖后直接返回。
+ * vm的提交先在日志中写入提交日志并落盘, 再通过commitDurable写入状态, 不再落盘; 崩溃时文件中缺少的已提交状态
+ * 由恢复按提交日志补上, 之后和abortActive一起落盘。正常关闭时把文件中所有状态落盘。
  * @Author Ccc
  * @DATE: 2023/8/2 21:34
  */
@@ -34,27 +56,84 @@ public class TransactionManagerImpl implements TransactionManager {
     //超级事务,永远为commited状态
     public static final long SUPER_XID = 0;
 
+    //每次预留的XID个数
+    static final int XID_RESERVE = 1024;
+
+    //可丢弃的前缀达到这么多XID时才压缩文件
+    static final long COMPACT_THRESHOLD = 1 << 20;
+
+    //文件头高水位的最高位, 标记文件经过压缩, 带有摘要
+    private static final long COMPACTED_FLAG = 1L << 63;
+
     //XID文件后缀
     static final String XID_SUFFIX = ".xid";
 
+    //xid文件, 压缩时用新文件替换
+    private File xidFile;
+
     //RandomAccessFile是Java中用于对文件进行随机访问的类。它可以在文件中任意位置读取或写入数据，而不仅限于顺序访问。
     private RandomAccessFile file;
 
     //FileChannel是Java NIO中用于对文件进行读写操作的通道。它提供了高效的文件操作方法，可以在文件中进行随机访问、读取和写入数据。
     private FileChannel fc;
 
-    //XID文件管理事务的总数
-    private long xidCounter;
+    //已经分配出去的最大XID
+    private AtomicLong xidCounter;
+
+    //已经预留并持久化的最大XID, 即文件头中的值
+    private volatile long xidReserved;
 
     private Lock counterLock;
 
+    //内存中的事务状态, 先于文件更新
+    private XidStatusTable statuses;
+
+    //基准XID及之前的摘要, 两者一起替换
+    private static class Horizon {
+        final long base;                //文件和状态表中的第一个XID
+        final long[] aborted;           //base之前已回滚的XID区间, [start, end)依次排列, 有序
+
+        Horizon(long base, long[] aborted) {
+            this.base = base;
+            this.aborted = aborted;
+        }
+    }
+
+    private volatile Horizon horizon;
+
+    //基准XID的状态在文件中的偏移
+    private long dataStart;
+
+    //上次压缩扫描到的位置, 之前的XID状态都已确定, 下次从这里继续扫描
+    private long compactScan;
+
+    //已写入的状态序号和已落盘的状态序号
+    private AtomicLong writeSeq;
+    private volatile long durableSeq;
 
-    TransactionManagerImpl(RandomAccessFile raf, FileChannel fc) {
+    //同一时刻只有一个线程fsync
+    private Lock syncLock;
+
+    //写状态时持有读锁, 压缩替换文件时持有写锁
+    private ReadWriteLock fileLock;
+
+    //异步提交、状态还没有写入文件的事务, 文件中仍是正在进行, 压缩不能越过它们
+    private Set<Long> pendingCommits;
+
+
+    TransactionManagerImpl(RandomAccessFile raf, FileChannel fc, File xidFile) {
         this.file = raf;
         this.fc = fc;
+        this.xidFile = xidFile;
         //ReentrantLock是Java中的一个可重入锁（Reentrant Lock），它提供了与synchronized关键字相似的功能，但更加灵活和强大。
         counterLock = new ReentrantLock();
+        fileLock = new ReentrantReadWriteLock();
+        syncLock = new ReentrantLock();
+        writeSeq = new AtomicLong();
+        pendingCommits = new ConcurrentSkipListSet<>();
+        statuses = new XidStatusTable();
         checkXIDCounter();
+        loadStatuses();
     }
 
     /**
@@ -85,42 +164,184 @@ public class TransactionManagerImpl implements TransactionManager {
             Panic.panic(e);
         }
 
-        //最后，通过调用 getXidPosition(this.xidCounter + 1) 方法获取事务 XID 在文件中的偏移位置，并将其赋值给 end 变量。
-        // 如果计算得到的 end 值与文件长度不相等，则同样会触发 Panic.panic(Error.BadXIDFileException) 方法，强制停机。
-        this.xidCounter = Parser.parseLong(buf.array());
-        long end = getXidPosition(this.xidCounter + 1);
-        if(end != fileLen) {
+        long header = Parser.parseLong(buf.array());
+        this.xidReserved = header & ~COMPACTED_FLAG;
+        this.xidCounter = new AtomicLong(xidReserved);
+        readHorizon((header & COMPACTED_FLAG) != 0, fileLen);
+
+        //最后，通过调用 getXidPosition(this.xidReserved + 1) 方法获取事务 XID 在文件中的偏移位置，并将其赋值给 end 变量。
+        // 文件比end短说明文件损坏; 比end长说明预留时扩展了文件但文件头还没来得及更新, 这一段没有被分配过, 截掉即可
+        long end = getXidPosition(this.xidReserved + 1);
+        if(end > fileLen) {
             Panic.panic(Error.BadXIDFileException);
         }
+        if(end < fileLen) {
+            try {
+                fc.truncate(end);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    // 读取压缩文件头中的基准XID和摘要
+    private void readHorizon(boolean compacted, long fileLen) {
+        if(!compacted) {
+            horizon = new Horizon(1, new long[0]);
+            dataStart = LEN_XID_HEADER_LENGTH;
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(12);
+        readFully(buf, LEN_XID_HEADER_LENGTH, fileLen);
+        long base = buf.getLong(0);
+        int count = buf.getInt(8);
+        if(count < 0 || LEN_XID_HEADER_LENGTH + 12 + (long)count * 16 > fileLen) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        ByteBuffer ranges = ByteBuffer.allocate(count * 16);
+        readFully(ranges, LEN_XID_HEADER_LENGTH + 12, fileLen);
+        ranges.flip();
+        long[] aborted = new long[count * 2];
+        ranges.asLongBuffer().get(aborted);
+        horizon = new Horizon(base, aborted);
+        dataStart = LEN_XID_HEADER_LENGTH + 12 + (long)count * 16;
+    }
+
+    private void readFully(ByteBuffer buf, long offset, long fileLen) {
+        if(offset + buf.remaining() > fileLen) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        try {
+            while(buf.hasRemaining()) {
+                fc.read(buf, offset + buf.position());
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 把xid文件中基准之后所有事务的状态读入内存
+    private void loadStatuses() {
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        long xid = horizon.base;
+        statuses.truncateBefore(xid);
+        while(xid <= xidReserved) {
+            buf.clear();
+            buf.limit((int)Math.min(buf.capacity(), (xidReserved - xid + 1) * XID_FIELD_SIZE));
+            try {
+                while(buf.hasRemaining()) {
+                    if(fc.read(buf, getXidPosition(xid) + buf.position()) < 0) {
+                        Panic.panic(Error.BadXIDFileException);
+                    }
+                }
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            statuses.fill(xid, buf.array(), buf.limit());
+            xid += buf.limit() / XID_FIELD_SIZE;
+        }
     }
 
     // 根据事务xid取得其在xid文件中对应的位置
     private long getXidPosition(long xid) {
-        return LEN_XID_HEADER_LENGTH + (xid-1)*XID_FIELD_SIZE;
+        return dataStart + (xid-horizon.base)*XID_FIELD_SIZE;
     }
 
 
     //开始一个事务,并返回XID
     public long begin() {
+        //从内存中分配XID, 超出预留范围时再预留一块
+        long xid = xidCounter.incrementAndGet();
+        if(xid > xidReserved) {
+            reserveXID(xid);
+        }
+        //将这个事务的状态改为正在进行, 不需要落盘: 崩溃后该XID要么仍是正在进行, 由恢复过程回滚, 要么是预留时写入的已回滚
+        fileLock.readLock().lock();
+        try {
+            writeStatus(xid, FIELD_TRAN_ACTIVE);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+        return xid;
+    }
+
+    //下一个将要分配的XID, 比它小的XID都已经分配出去
+    public long nextXID() {
+        return xidCounter.get() + 1;
+    }
+
+    //预留XID直到覆盖xid, 先扩展文件并落盘, 再更新文件头, 崩溃在两者之间时打开文件会截掉多出的部分
+    //内存中预留的XID记为正在进行, 这样压缩不会越过已经分配但还没写入状态的XID
+    private void reserveXID(long xid) {
         //获取锁
         counterLock.lock();
         try {
-            //创建事务的XID
-            long xid = xidCounter + 1;
-            //将这个事务的状态改为正在进行
-            updateStatus(xid, FIELD_TRAN_ABORTED);
-            incrXIDCounter();
-            return xid;
-        }finally {
+            while(xid > xidReserved) {
+                long reserved = xidReserved + XID_RESERVE;
+                byte[] aborted = new byte[XID_RESERVE * XID_FIELD_SIZE];
+                Arrays.fill(aborted, FIELD_TRAN_ABORTED);
+                statuses.fill(xidReserved + 1, FIELD_TRAN_ACTIVE, XID_RESERVE);
+                try {
+                    fc.write(ByteBuffer.wrap(aborted), getXidPosition(xidReserved + 1));
+                    fc.force(false);
+                } catch (IOException e) {
+                    Panic.panic(e);
+                }
+                incrXIDCounter(reserved);
+            }
+            compact();
+        } finally {
             //解锁
             counterLock.unlock();
         }
-
     }
 
+    //写入状态后等待落盘, 返回时状态已经持久化
+    private void updateStatus(long xid, byte status) {
+        long seq;
+        fileLock.readLock().lock();
+        try {
+            writeStatus(xid, status);
+            //写完之后才取序号, 序号不超过某个值的状态一定都已经写入
+            seq = writeSeq.incrementAndGet();
+        } finally {
+            fileLock.readLock().unlock();
+        }
+        syncTo(seq);
+    }
 
+    //保证序号不超过seq的状态都已落盘, 一次fsync覆盖调用时已写入的所有状态
+    private void syncTo(long seq) {
+        if(durableSeq >= seq) {
+            return;
+        }
+        syncLock.lock();
+        try {
+            //等锁期间其他线程的fsync可能已经覆盖了seq
+            if(durableSeq >= seq) {
+                return;
+            }
+            long target = writeSeq.get();
+            fileLock.readLock().lock();
+            try{
+                //作用是将文件通道对应的数据强制刷新到磁盘上的存储介质，但不保证立即写入磁盘。
+                //参数 false 表示不需要将文件的元数据（metadata）也一同刷新到磁盘。
+                fc.force(false);
+            }catch (IOException e){
+                Panic.panic(e);
+            } finally {
+                fileLock.readLock().unlock();
+            }
+            durableSeq = target;
+        } finally {
+            syncLock.unlock();
+        }
+    }
 
-    private void updateStatus(long xid, byte status) {
+    //写入事务状态但不落盘, 使用定位写, 不改变fc的position, 多个线程可以同时写
+    //内存中的状态先更新, 之后的查询立即可见
+    private void writeStatus(long xid, byte status) {
+        statuses.set(xid, status);
         long offset = getXidPosition(xid);
 
         //创建这个事务的状态字节数组,长度为1
@@ -130,31 +351,20 @@ public class TransactionManagerImpl implements TransactionManager {
         ByteBuffer buf = ByteBuffer.wrap(tmp);
 
         try{
-            //将指针移向offst位置
-            fc.position(offset);
-            //写入事务状态
-            fc.write(buf);
-        }catch (IOException e){
-            Panic.panic(e);
-        }
-
-        try{
-            //作用是将文件通道对应的数据强制刷新到磁盘上的存储介质，但不保证立即写入磁盘。
-            //参数 false 表示不需要将文件的元数据（metadata）也一同刷新到磁盘。
-            fc.force(false);
+            //在offset位置写入事务状态
+            fc.write(buf, offset);
         }catch (IOException e){
             Panic.panic(e);
         }
     }
 
-    //XID文件事务管理总数加一,将XidCounter加一,并更新XID Header
-    private void incrXIDCounter() {
-        xidCounter++;
+    //更新XID Header中的高水位
+    private void incrXIDCounter(long reserved) {
         //更新XID Header
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
+        long header = horizon.base > 1 ? reserved | COMPACTED_FLAG : reserved;
+        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(header));
         try{
-            fc.position(0);
-            fc.write(buf);
+            fc.write(buf, 0);
         }catch (IOException e){
             Panic.panic(e);
         }
@@ -164,7 +374,7 @@ public class TransactionManagerImpl implements TransactionManager {
         }catch (IOException e){
             Panic.panic(e);
         }
-
+        xidReserved = reserved;
     }
 
     public void commit(long xid) {
@@ -172,11 +382,140 @@ public class TransactionManagerImpl implements TransactionManager {
         updateStatus(xid, FIELD_TRAN_COMMITTED);
     }
 
+    //异步提交: 内存中的状态改为已提交, 之后的查询立即可见, 文件中的状态由commitDurable写入
+    //调用者要保证写入文件之前事务的日志已经落盘, 否则崩溃后文件中已提交的事务可能缺少日志
+    public void commitAsync(long xid) {
+        pendingCommits.add(xid);
+        fileLock.readLock().lock();
+        try {
+            statuses.set(xid, FIELD_TRAN_COMMITTED);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    //提交日志已经落盘的事务, 把它们的状态写入文件, 不落盘
+    public void commitDurable(Collection<Long> xids) {
+        if(xids.isEmpty()) {
+            return;
+        }
+        fileLock.readLock().lock();
+        try {
+            for(long xid : xids) {
+                writeStatus(xid, FIELD_TRAN_COMMITTED);
+                //在读锁内移出, 压缩要么在写入之前把它记为正在进行, 要么在写入之后看到已提交
+                pendingCommits.remove(xid);
+            }
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    public boolean isCommitDurable(long xid) {
+        return !pendingCommits.contains(xid);
+    }
+
     public void abort(long xid) {
         //修改事务状态为已回滚
         updateStatus(xid, FIELD_TRAN_ABORTED);
     }
 
+    //恢复完成后, 已经分配过但仍处于正在进行状态的事务不会再继续, 标记为已回滚, 之后压缩才能越过它们
+    public void abortActive() {
+        fileLock.readLock().lock();
+        try {
+            long counter = xidCounter.get();
+            for(long xid = horizon.base; xid <= counter; xid ++) {
+                if(statuses.get(xid) == FIELD_TRAN_ACTIVE) {
+                    writeStatus(xid, FIELD_TRAN_ABORTED);
+                }
+            }
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    //丢弃最早的正在进行的事务之前的状态, 在counterLock下调用
+    private void compact() {
+        Horizon h = horizon;
+        long counter = xidCounter.get();
+        long newBase = Math.max(h.base, compactScan);
+        while(newBase <= counter && statuses.get(newBase) != FIELD_TRAN_ACTIVE && !pendingCommits.contains(newBase)) {
+            newBase ++;
+        }
+        compactScan = newBase;
+        if(newBase - h.base < COMPACT_THRESHOLD) {
+            return;
+        }
+
+        //把[base, newBase)中已回滚的XID并入摘要
+        long[] aborted = Arrays.copyOf(h.aborted, h.aborted.length + 16);
+        int n = h.aborted.length;
+        for(long xid = h.base; xid < newBase; xid ++) {
+            if(statuses.get(xid) != FIELD_TRAN_ABORTED) {
+                continue;
+            }
+            if(n > 0 && aborted[n-1] == xid) {
+                aborted[n-1] = xid + 1;
+                continue;
+            }
+            if(n + 2 > aborted.length) {
+                aborted = Arrays.copyOf(aborted, aborted.length * 2);
+            }
+            aborted[n ++] = xid;
+            aborted[n ++] = xid + 1;
+        }
+        aborted = Arrays.copyOf(aborted, n);
+
+        fileLock.writeLock().lock();
+        try {
+            //写入新文件后原子地替换旧文件; 还没写入状态的新XID记为已回滚, 和预留时一样
+            counter = xidCounter.get();
+            long headerLen = LEN_XID_HEADER_LENGTH + 12 + (long)n * 8;
+            ByteBuffer buf = ByteBuffer.allocate((int)(headerLen + (xidReserved - newBase + 1) * XID_FIELD_SIZE));
+            buf.putLong(xidReserved | COMPACTED_FLAG);
+            buf.putLong(newBase);
+            buf.putInt(n / 2);
+            for(int i = 0; i < n; i ++) {
+                buf.putLong(aborted[i]);
+            }
+            for(long xid = newBase; xid <= xidReserved; xid ++) {
+                if(xid > counter) {
+                    buf.put(FIELD_TRAN_ABORTED);
+                } else {
+                    buf.put(pendingCommits.contains(xid) ? FIELD_TRAN_ACTIVE : statuses.get(xid));
+                }
+            }
+            buf.flip();
+
+            File tmp = new File(xidFile.getPath() + ".tmp");
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                raf.setLength(0);
+                FileChannel tfc = raf.getChannel();
+                while(buf.hasRemaining()) {
+                    tfc.write(buf, buf.position());
+                }
+                tfc.force(true);
+            }
+            Files.move(tmp.toPath(), xidFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            fc.close();
+            file.close();
+            file = new RandomAccessFile(xidFile, "rw");
+            fc = file.getChannel();
+
+            horizon = new Horizon(newBase, aborted);
+            dataStart = headerLen;
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+        statuses.truncateBefore(newBase);
+    }
+
     public boolean isActive(long xid) {
         if(xid == SUPER_XID) return false;
         return checkStatus(xid, FIELD_TRAN_ACTIVE);
@@ -192,21 +531,39 @@ public class TransactionManagerImpl implements TransactionManager {
         return checkStatus(xid, FIELD_TRAN_ABORTED);
     }
 
-    // 检测XID事务是否处于status状态
+    // 检测XID事务是否处于status状态, 只读内存中的状态表, 不加锁
+    // 基准之前的XID查摘要: 在已回滚区间中的是已回滚, 否则是已提交
     private boolean checkStatus(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
-        try {
-            fc.position(offset);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+        Horizon h = horizon;
+        if(xid >= h.base) {
+            byte s = statuses.get(xid);
+            if(s >= 0) {
+                return s == status;
+            }
+            h = horizon;
+        }
+        return frozenStatus(h, xid) == status;
+    }
+
+    private byte frozenStatus(Horizon h, long xid) {
+        long[] aborted = h.aborted;
+        int lo = 0, hi = aborted.length / 2 - 1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if(xid < aborted[mid*2]) {
+                hi = mid - 1;
+            } else if(xid >= aborted[mid*2+1]) {
+                lo = mid + 1;
+            } else {
+                return FIELD_TRAN_ABORTED;
+            }
         }
-        return buf.array()[0] == status;
+        return FIELD_TRAN_COMMITTED;
     }
 
     public void close() {
         try {
+            fc.force(false);
             fc.close();
             file.close();
         } catch (IOException e) {
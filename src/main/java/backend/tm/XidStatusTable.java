@@ -0,0 +1,125 @@
+package backend.tm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @PROJECT_NAME: HCDB
+ * @DESCRIPTION:内存中的事务状态表
+ * 每个XID占2位, 一个long存32个XID, 按段分配, 段满了追加新段
+ * 段数组整体替换(写时复制), 读不加锁, 只有扩容和丢弃前缀时加锁
+ * 超出表范围的XID返回0, 和读xid文件末尾之后的结果一致; 已经被丢弃的XID返回-1, 由调用者查询摘要
+ */
+class XidStatusTable {
+    private static final int BITS = 2;
+    private static final int PER_LONG = Long.SIZE / BITS;       // 每个long存放的XID数
+    private static final int SEG_LONGS = 1 << 12;               // 每段的long个数
+    private static final long SEG_XIDS = (long)SEG_LONGS * PER_LONG;
+    private static final long MASK = (1L << BITS) - 1;
+
+    // 段数组, segs[i]对应第first+i段, 两者一起替换保证读到一致的组合
+    private static class Segments {
+        final int first;
+        final AtomicLongArray[] segs;
+
+        Segments(int first, AtomicLongArray[] segs) {
+            this.first = first;
+            this.segs = segs;
+        }
+    }
+
+    private volatile Segments segments = new Segments(0, new AtomicLongArray[0]);
+    private Lock growLock = new ReentrantLock();
+
+    byte get(long xid) {
+        Segments s = segments;
+        int seg = (int)(xid / SEG_XIDS) - s.first;
+        if(seg < 0) {
+            return -1;
+        }
+        if(seg >= s.segs.length) {
+            return 0;
+        }
+        long i = xid % SEG_XIDS;
+        long word = s.segs[seg].get((int)(i / PER_LONG));
+        return (byte)((word >>> shift(i)) & MASK);
+    }
+
+    // 调用者保证xid没有被丢弃
+    void set(long xid, byte status) {
+        Segments s = segments;
+        int seg = (int)(xid / SEG_XIDS) - s.first;
+        if(seg >= s.segs.length) {
+            s = grow(seg + s.first);
+            seg = (int)(xid / SEG_XIDS) - s.first;
+        }
+        long i = xid % SEG_XIDS;
+        AtomicLongArray words = s.segs[seg];
+        int idx = (int)(i / PER_LONG);
+        int shift = shift(i);
+        while(true) {
+            long old = words.get(idx);
+            long word = (old & ~(MASK << shift)) | (((long)status & MASK) << shift);
+            if(old == word || words.compareAndSet(idx, old, word)) {
+                return;
+            }
+        }
+    }
+
+    // 把[from, from+len)这一段依次设为status中的值, 用于装载xid文件
+    void fill(long from, byte[] status, int len) {
+        for(int i = 0; i < len; i ++) {
+            set(from + i, status[i]);
+        }
+    }
+
+    // 把[from, from+len)这一段都设为status
+    void fill(long from, byte status, int len) {
+        for(int i = 0; i < len; i ++) {
+            set(from + i, status);
+        }
+    }
+
+    // 丢弃完全位于xid之前的段, 之后对这些XID的查询返回-1
+    void truncateBefore(long xid) {
+        growLock.lock();
+        try {
+            Segments s = segments;
+            int drop = (int)(xid / SEG_XIDS) - s.first;
+            if(drop <= 0) {
+                return;
+            }
+            AtomicLongArray[] kept = new AtomicLongArray[Math.max(0, s.segs.length - drop)];
+            System.arraycopy(s.segs, s.segs.length - kept.length, kept, 0, kept.length);
+            segments = new Segments(s.first + drop, kept);
+        } finally {
+            growLock.unlock();
+        }
+    }
+
+    private int shift(long i) {
+        return (int)(i % PER_LONG) * BITS;
+    }
+
+    // 扩展到能容纳第seg段(绝对段号)
+    private Segments grow(int seg) {
+        growLock.lock();
+        try {
+            Segments s = segments;
+            if(seg - s.first < s.segs.length) {
+                return s;
+            }
+            AtomicLongArray[] grown = new AtomicLongArray[seg - s.first + 1];
+            System.arraycopy(s.segs, 0, grown, 0, s.segs.length);
+            for(int i = s.segs.length; i < grown.length; i ++) {
+                grown[i] = new AtomicLongArray(SEG_LONGS);
+            }
+            s = new Segments(s.first, grown);
+            segments = s;
+            return s;
+        } finally {
+            growLock.unlock();
+        }
+    }
+}
@@ -38,4 +38,22 @@ public class Parser {
         ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 4);
         return buffer.getInt();
     }
+
+    // 以下几个方法直接从buf的offset处解析,不拷贝也不创建ByteBuffer,用于日志和页面的原地解析
+    public static long parseLong(byte[] buf, int offset) {
+        long value = 0;
+        for(int i = 0; i < 8; i ++) {
+            value = (value << 8) | (buf[offset+i] & 0xFF);
+        }
+        return value;
+    }
+
+    public static int parseInt(byte[] buf, int offset) {
+        return ((buf[offset] & 0xFF) << 24) | ((buf[offset+1] & 0xFF) << 16)
+                | ((buf[offset+2] & 0xFF) << 8) | (buf[offset+3] & 0xFF);
+    }
+
+    public static short parseShort(byte[] buf, int offset) {
+        return (short)(((buf[offset] & 0xFF) << 8) | (buf[offset+1] & 0xFF));
+    }
 }
@@ -0,0 +1,132 @@
+package backend.vm;
+
+import backend.dm.DataManager;
+import backend.tm.TransactionManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 异步提交的后台落盘
+ *
+ * 异步提交的事务写入提交日志后在tm中只修改内存里的状态就返回, 由这里记下, 之后分批持久化:
+ *   先取出已经记下的事务, 再让日志全部落盘, 这些事务的提交日志都在落盘的范围内, 最后把它们的状态写入xid文件。
+ * 一批只有日志的一次fsync, xid文件不落盘, 崩溃时由恢复按提交日志补上。
+ * 崩溃时提交日志没有落盘的事务仍是正在进行, 恢复时回滚, 日志落盘的总是一段前缀, 留下的也是按提交顺序的一段前缀。
+ * 后台线程每隔WINDOW_MS做一次; 没有落盘的日志超过WINDOW_BYTES时由提交的线程自己做, 两者共同限制崩溃时丢失的提交。
+ * 同步提交的事务在写入自己的状态之前也做一次, 之前异步提交的事务不会比依赖它们的同步提交更晚持久化。
+ */
+class CommitFlusher implements Runnable {
+
+    static final long WINDOW_MS = 10;                  // 异步提交最多在这么久之后持久化
+    static final long WINDOW_BYTES = 1 << 20;          // 没有落盘的日志的上限
+
+    private DataManager dm;
+    private TransactionManager tm;
+    private List<Long> pending;                        // 异步提交、状态还没有写入文件的事务
+    private long minPending = Long.MAX_VALUE;          // 其中最小的XID
+    private long minFlushing = Long.MAX_VALUE;         // 正在持久化的事务中最小的XID
+    private Lock lock;
+    private Lock flushLock;                            // 同一时刻只有一个线程持久化
+    private volatile boolean closed;
+    private Thread worker;
+
+    CommitFlusher(DataManager dm, TransactionManager tm) {
+        this.dm = dm;
+        this.tm = tm;
+        this.pending = new ArrayList<>();
+        this.lock = new ReentrantLock();
+        this.flushLock = new ReentrantLock();
+    }
+
+    void start() {
+        worker = new Thread(this, "vm-commit-flush");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // 异步提交, 调用时事务的日志必须都已写入
+    void commit(long xid) {
+        // 和取出一起在lock下做, 取出时已经可见的提交一定都被取走
+        lock.lock();
+        try {
+            tm.commitAsync(xid);
+            pending.add(xid);
+            minPending = Math.min(minPending, xid);
+        } finally {
+            lock.unlock();
+        }
+        if(dm.unflushedLog() >= WINDOW_BYTES) {
+            flush();
+        }
+    }
+
+    // 让之前提交的事务全部持久化
+    void flush() {
+        // 没有异步提交时只刷日志, 同步提交之间不用排队
+        if(minPending() == Long.MAX_VALUE) {
+            dm.flushLog();
+            return;
+        }
+        flushLock.lock();
+        try {
+            List<Long> xids;
+            lock.lock();
+            try {
+                xids = pending;
+                minFlushing = minPending;
+                pending = new ArrayList<>();
+                minPending = Long.MAX_VALUE;
+            } finally {
+                lock.unlock();
+            }
+            dm.flushLog();
+            tm.commitDurable(xids);
+            lock.lock();
+            try {
+                minFlushing = Long.MAX_VALUE;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    // 还没有持久化的异步提交中最小的XID, 没有时为Long.MAX_VALUE
+    long minPending() {
+        lock.lock();
+        try {
+            return Math.min(minPending, minFlushing);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        closed = true;
+        if(worker != null) {
+            worker.interrupt();
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    @Override
+    public void run() {
+        while(!closed) {
+            try {
+                Thread.sleep(WINDOW_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            flush();
+        }
+    }
+}
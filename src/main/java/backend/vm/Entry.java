@@ -2,22 +2,42 @@ package backend.vm;
 
 import backend.common.SubArray;
 import backend.dm.dataItem.DataItem;
+import backend.tm.TransactionManagerImpl;
 import backend.utils.Parser;
-import com.google.common.primitives.Bytes;
-
-
-import java.util.Arrays;
 
 /**
  * VM向上层抽象出entry
  * entry结构：
  * [XMIN] [XMAX] [data]
+ * XMIN和XMAX的最高两位是提示位(HINT_COMMITTED/HINT_ABORTED), 记录该XID已知的最终状态,
+ * 读者第一次从tm得到最终状态时顺手设置, 不记日志; 之后的可见性判断直接看提示位, 不再查询tm。
+ * XID不会用到这两位, 没有提示位的旧数据照常工作。
+ *
+ * 带版本链的entry在XMIN中设置VERSIONED位, 结构为：
+ * [XMIN] [XMAX] [NEXT] [ROW] [data]
+ * NEXT指向更新后的下一个版本, ROW为这一行第一个版本的uid(第一个版本自己为0), 行的uid始终是第一个版本的uid。
+ * 读者从行的uid出发沿NEXT找到第一个对自己可见的版本。没有VERSIONED位的旧entry没有这两个字段, 不能更新。
  */
 public class Entry {
 
     private static final int OF_XMIN = 0;
     private static final int OF_XMAX = OF_XMIN+8;
     private static final int OF_DATA = OF_XMAX+8;
+    private static final int OF_NEXT = OF_XMAX+8;
+    private static final int OF_ROW = OF_NEXT+8;
+    private static final int OF_VERSIONED_DATA = OF_ROW+8;
+
+    // 提示位, 分别作用于XMIN和XMAX所在的8字节
+    public static final long HINT_COMMITTED = 1L << 63;
+    public static final long HINT_ABORTED = 1L << 62;
+    public static final long HINT_MASK = HINT_COMMITTED | HINT_ABORTED;
+    // XMIN中标记entry带有版本链字段
+    public static final long VERSIONED = 1L << 61;
+    // 去掉提示位和标记位后即为XID
+    public static final long XID_MASK = VERSIONED - 1;
+
+    // Entry对象本身的大致大小, 数据在dataitem所在的页面里
+    public static final int SHALLOW_SIZE = 40;
 
     private long uid;
     private DataItem dataItem;
@@ -33,13 +53,23 @@ public class Entry {
 
     public static Entry loadEntry(VersionManager vm, long uid) throws Exception {
         DataItem di = ((VersionManagerImpl)vm).dm.read(uid);
+        if(di == null) {
+            return null;
+        }
         return newEntry(vm, di, uid);
     }
 
     public static byte[] wrapEntryRaw(long xid, byte[] data) {
-        byte[] xmin = Parser.long2Byte(xid);
-        byte[] xmax = new byte[8];
-        return Bytes.concat(xmin, xmax, data);
+        return wrapEntryRaw(xid, data, 0);
+    }
+
+    // row为这一行第一个版本的uid, 新插入的行为0
+    public static byte[] wrapEntryRaw(long xid, byte[] data, long row) {
+        byte[] raw = new byte[OF_VERSIONED_DATA + data.length];
+        System.arraycopy(Parser.long2Byte(xid | VERSIONED), 0, raw, OF_XMIN, 8);
+        System.arraycopy(Parser.long2Byte(row), 0, raw, OF_ROW, 8);
+        System.arraycopy(data, 0, raw, OF_VERSIONED_DATA, data.length);
+        return raw;
     }
 
     public void release() {
@@ -54,35 +84,155 @@ public class Entry {
     public byte[] data() {
         dataItem.rLock();
         try {
-            SubArray sa = dataItem.data();
-            byte[] data = new byte[sa.end - sa.start - OF_DATA];
-            System.arraycopy(sa.raw, sa.start+OF_DATA, data, 0, data.length);
-            return data;
+            return parseData(dataItem.data());
         } finally {
             dataItem.rUnLock();
         }
     }
 
-    public long getXmin() {
+    // 把内容拷贝到调用者提供的buf中, 返回内容长度
+    // buf放不下时不拷贝, 调用者可以按返回的长度重新分配后再读
+    public int data(byte[] buf) {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMIN, sa.start+OF_XMAX));
+            int offset = dataOffset(sa);
+            int length = sa.end - sa.start - offset;
+            if(length <= buf.length) {
+                System.arraycopy(sa.raw, sa.start+offset, buf, 0, length);
+            }
+            return length;
         } finally {
             dataItem.rUnLock();
         }
     }
 
+    public long getXmin() {
+        return getXminWord() & XID_MASK;
+    }
+
     public long getXmax() {
+        return getXmaxWord() & XID_MASK;
+    }
+
+    // 下一个版本的uid, 没有时为0
+    public long getNext() {
+        if((getXminWord() & VERSIONED) == 0) {
+            return 0;
+        }
+        return readWord(OF_NEXT);
+    }
+
+    public boolean isVersioned() {
+        return (getXminWord() & VERSIONED) != 0;
+    }
+
+    // 这个版本所属行的uid
+    public long getRow() {
+        if((getXminWord() & VERSIONED) == 0) {
+            return uid;
+        }
+        long row = readWord(OF_ROW);
+        return row == 0 ? uid : row;
+    }
+
+    // 带提示位的XMIN和XMAX
+    long getXminWord() {
+        return readWord(OF_XMIN);
+    }
+
+    long getXmaxWord() {
+        return readWord(OF_XMAX);
+    }
+
+    // 先乐观读, 期间有写入时再加读锁重读
+    private long readWord(int offset) {
+        long stamp = dataItem.tryOptimisticRead();
+        if(stamp != 0) {
+            SubArray sa = dataItem.data();
+            long word = Parser.parseLong(sa.raw, sa.start+offset);
+            if(dataItem.validate(stamp)) {
+                return word;
+            }
+        }
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_DATA));
+            return Parser.parseLong(sa.raw, sa.start+offset);
         } finally {
             dataItem.rUnLock();
         }
     }
 
+    // xid在vm看来是否还未结束, 提交后到移出快照之前的事务也算
+    boolean isActiveInVM(long xid) {
+        return ((VersionManagerImpl)vm).isRunning(xid);
+    }
+
+    void hintXmin(long xmin, long hint) {
+        setHint(OF_XMIN, xmin, hint);
+    }
+
+    void hintXmax(long xmax, long hint) {
+        setHint(OF_XMAX, xmax, hint);
+    }
+
+    // 在XID仍是xid时给它加上提示位, 拿不到写锁时直接放弃, 提示位只是优化
+    // 只改最高字节, 不记日志, 页面标脏后提示位随页面写回
+    private void setHint(int offset, long xid, long hint) {
+        if(!dataItem.tryLock()) {
+            return;
+        }
+        try {
+            SubArray sa = dataItem.data();
+            long word = Parser.parseLong(sa.raw, sa.start+offset);
+            if((word & XID_MASK) != xid || (word & HINT_MASK) != 0) {
+                return;
+            }
+            sa.raw[sa.start+offset] |= (byte)(hint >>> 56);
+            dataItem.page().setDirty(true);
+        } finally {
+            dataItem.unlock();
+        }
+    }
+
+    // 以下几个方法直接从dataitem的[Data]中解析entry, 用于扫描时不经过缓存的页
+    public static long parseXmin(SubArray sa) {
+        return parseXminWord(sa) & XID_MASK;
+    }
+
+    public static long parseXmax(SubArray sa) {
+        return parseXmaxWord(sa) & XID_MASK;
+    }
+
+    public static long parseXminWord(SubArray sa) {
+        return Parser.parseLong(sa.raw, sa.start+OF_XMIN);
+    }
+
+    public static long parseXmaxWord(SubArray sa) {
+        return Parser.parseLong(sa.raw, sa.start+OF_XMAX);
+    }
+
+    public static byte[] parseData(SubArray sa) {
+        int offset = dataOffset(sa);
+        byte[] data = new byte[sa.end - sa.start - offset];
+        System.arraycopy(sa.raw, sa.start+offset, data, 0, data.length);
+        return data;
+    }
+
+    // 这个版本所属行的uid, uid为这个版本自己的uid
+    public static long parseRow(SubArray sa, long uid) {
+        if((parseXminWord(sa) & VERSIONED) == 0) {
+            return uid;
+        }
+        long row = Parser.parseLong(sa.raw, sa.start+OF_ROW);
+        return row == 0 ? uid : row;
+    }
+
+    private static int dataOffset(SubArray sa) {
+        return (parseXminWord(sa) & VERSIONED) == 0 ? OF_DATA : OF_VERSIONED_DATA;
+    }
+
     public void setXmax(long xid) {
         dataItem.before();
         try {
@@ -93,6 +243,32 @@ public class Entry {
         }
     }
 
+    // 清理旧版本时修改NEXT, 只在XMAX仍是xmax、NEXT仍是expect时修改, 以SUPER_XID记日志
+    boolean casNext(long xmax, long expect, long next) {
+        dataItem.before();
+        SubArray sa = dataItem.data();
+        long word = Parser.parseLong(sa.raw, sa.start+OF_XMAX);
+        if((word & XID_MASK) != xmax || Parser.parseLong(sa.raw, sa.start+OF_NEXT) != expect) {
+            dataItem.unBefore();
+            return false;
+        }
+        System.arraycopy(Parser.long2Byte(next), 0, sa.raw, sa.start+OF_NEXT, 8);
+        dataItem.after(TransactionManagerImpl.SUPER_XID);
+        return true;
+    }
+
+    // 更新或删除带版本链的entry, XMAX和NEXT相邻, 在同一条日志中修改
+    public void setXmaxAndNext(long xid, long next) {
+        dataItem.before();
+        try {
+            SubArray sa = dataItem.data();
+            System.arraycopy(Parser.long2Byte(xid), 0, sa.raw, sa.start+OF_XMAX, 8);
+            System.arraycopy(Parser.long2Byte(next), 0, sa.raw, sa.start+OF_NEXT, 8);
+        } finally {
+            dataItem.after(xid);
+        }
+    }
+
     public long getUid() {
         return uid;
     }
@@ -0,0 +1,75 @@
+package backend.vm;
+
+import backend.common.SubArray;
+import backend.dm.DataItemScanner;
+
+/**
+ * 在DataItemScanner之上按事务可见性过滤的扫描游标
+ * 不在页面缓存中的页直接从预读缓冲区解析xmin和xmax,
+ * 缓存中的页可能正在被修改, 通过vm的读路径加锁读取
+ * 扫描逐个判断每个版本, 不沿版本链查找
+ */
+public class EntryScanner {
+
+    private VersionManagerImpl vm;
+    private Transaction t;
+    private DataItemScanner scanner;
+    private int token;          // 扫描期间一直处在vm的epoch中, 清理线程不会回收正在扫描的页
+
+    private long uid;
+    private byte[] data;
+
+    EntryScanner(VersionManagerImpl vm, Transaction t, DataItemScanner scanner, int token) {
+        this.vm = vm;
+        this.t = t;
+        this.scanner = scanner;
+        this.token = token;
+    }
+
+    // 移动到下一个对事务可见的entry, 没有时返回false
+    public boolean next() throws Exception {
+        while(scanner.next()) {
+            long uid = scanner.uid();
+            byte[] data;
+            if(scanner.inCache()) {
+                data = vm.readVersion(t, uid);
+            } else {
+                SubArray sa = scanner.data();
+                long xminWord = Entry.parseXminWord(sa);
+                long xmaxWord = Entry.parseXmaxWord(sa);
+                if(Visibility.isVisible(vm.tm, t, xminWord, xmaxWord)) {
+                    data = Entry.parseData(sa);
+                } else {
+                    data = null;
+                }
+                if(t.ssi != null) {
+                    vm.ssi.conflict(t.ssi, (data != null ? xmaxWord : xminWord) & Entry.XID_MASK);
+                }
+            }
+            if(data != null) {
+                // 同一行的各个版本中最多只有一个可见, 返回行的uid
+                this.uid = Entry.parseRow(scanner.data(), uid);
+                this.data = data;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long uid() {
+        return uid;
+    }
+
+    public byte[] data() {
+        return data;
+    }
+
+    public void close() {
+        if(scanner == null) {
+            return;
+        }
+        scanner.close();
+        scanner = null;
+        vm.epoch.exit(token);
+    }
+}
@@ -0,0 +1,230 @@
+package backend.vm;
+
+import common.Error;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 维护了一个依赖等待图，以进行死锁检测
+ *
+ * 行锁是排他锁, 按uid分段存放, 每段一把锁, 不同行的加锁互不干扰。
+ * 每个被持有的uid有一个FIFO等待队列, 等待的线程park, 释放时直接把锁交给队首并unpark它。
+ * 一个事务同一时刻最多等待一个uid, 等待图中每个点出度至多为1,
+ * 所以只在需要等待时沿着 自己 -> 持有者 -> 持有者等待的uid的持有者 ... 走一遍即可发现新形成的环,
+ * 发现环时回滚环中最年轻(XID最大)的事务。等待超过waitTimeout时放弃并抛出LockWaitTimeoutException。
+ */
+public class LockTable {
+
+    private static final int SHARDS = 64;
+    private static final long DEFAULT_WAIT_TIMEOUT_MS = 10_000;
+
+    // 一个等待者
+    private static class Waiter {
+        final long xid;
+        final long uid;
+        final Thread thread;
+        volatile boolean granted;       // 已经获得锁
+        volatile boolean aborted;       // 被选为死锁的牺牲者
+
+        Waiter(long xid, long uid) {
+            this.xid = xid;
+            this.uid = uid;
+            this.thread = Thread.currentThread();
+        }
+    }
+
+    // 一个uid的锁状态
+    private static class LockState {
+        long owner;
+        ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    }
+
+    private static class Shard {
+        Lock lock = new ReentrantLock();
+        Map<Long, LockState> locks = new HashMap<>();
+    }
+
+    private Shard[] shards;
+    private Map<Long, List<Long>> held;        // 某个XID已经获得的资源, 只由该事务自己和授予它锁的线程修改
+    private Map<Long, Waiter> waiting;         // 正在等待的XID及其等待者, 即等待图中的边
+    private Lock detectLock;                   // 死锁检测串行进行
+    private long waitTimeoutNanos;             // 0表示一直等待
+
+    public LockTable() {
+        this(DEFAULT_WAIT_TIMEOUT_MS);
+    }
+
+    public LockTable(long waitTimeoutMs) {
+        shards = new Shard[SHARDS];
+        for(int i = 0; i < SHARDS; i ++) {
+            shards[i] = new Shard();
+        }
+        held = new ConcurrentHashMap<>();
+        waiting = new ConcurrentHashMap<>();
+        detectLock = new ReentrantLock();
+        waitTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(waitTimeoutMs);
+    }
+
+    // xid获取uid的锁, 需要等待时阻塞直到获得
+    // 出现死锁且自己被选为牺牲者时抛出DeadlockException, 等待超时时抛出LockWaitTimeoutException
+    public void add(long xid, long uid) throws Exception {
+        Shard shard = shard(uid);
+        Waiter w;
+        shard.lock.lock();
+        try {
+            LockState state = shard.locks.get(uid);
+            if(state == null) {
+                state = new LockState();
+                state.owner = xid;
+                shard.locks.put(uid, state);
+                held(xid).add(uid);
+                return;
+            }
+            if(state.owner == xid) {
+                return;
+            }
+            w = new Waiter(xid, uid);
+            state.queue.addLast(w);
+            waiting.put(xid, w);
+        } finally {
+            shard.lock.unlock();
+        }
+
+        detectDeadlock(w);
+        await(w);
+    }
+
+    // 释放xid持有的所有锁, 每个锁交给各自队列中的第一个等待者
+    // 返回这些uid, 也就是xid改写过的行, 没有时返回null
+    public List<Long> remove(long xid) {
+        List<Long> uids = held.remove(xid);
+        if(uids == null) {
+            return null;
+        }
+        for(long uid : uids) {
+            Shard shard = shard(uid);
+            shard.lock.lock();
+            try {
+                LockState state = shard.locks.get(uid);
+                if(state == null || state.owner != xid) {
+                    continue;
+                }
+                Waiter next = state.queue.pollFirst();
+                if(next == null) {
+                    shard.locks.remove(uid);
+                    continue;
+                }
+                state.owner = next.xid;
+                held(next.xid).add(uid);
+                waiting.remove(next.xid);
+                next.granted = true;
+                LockSupport.unpark(next.thread);
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return uids;
+    }
+
+    private void await(Waiter w) throws Exception {
+        long deadline = System.nanoTime() + waitTimeoutNanos;
+        while(true) {
+            if(w.granted) {
+                return;
+            }
+            if(w.aborted) {
+                throw Error.DeadlockException;
+            }
+            if(waitTimeoutNanos == 0) {
+                LockSupport.park(this);
+                continue;
+            }
+            long left = deadline - System.nanoTime();
+            if(left <= 0 && cancel(w)) {
+                throw Error.LockWaitTimeoutException;
+            }
+            LockSupport.parkNanos(this, Math.max(left, 0));
+        }
+    }
+
+    // 从队列中撤下等待者, 已经获得锁或者已被撤下时返回false
+    private boolean cancel(Waiter w) {
+        Shard shard = shard(w.uid);
+        shard.lock.lock();
+        try {
+            if(w.granted || w.aborted) {
+                return false;
+            }
+            LockState state = shard.locks.get(w.uid);
+            if(state != null) {
+                state.queue.remove(w);
+            }
+            waiting.remove(w.xid);
+            return true;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    // 沿着新加入的边查找环, 找到时撤下环中XID最大的等待者并唤醒它
+    private void detectDeadlock(Waiter start) {
+        Waiter victim;
+        detectLock.lock();
+        try {
+            victim = start;
+            Waiter w = start;
+            // 每个点出度为1, 走过的步数超过等待者个数说明进入了不含自己的环, 那个环在形成时已经处理过
+            for(int steps = waiting.size(); ; steps --) {
+                long owner = ownerOf(w.uid);
+                if(owner == start.xid) {
+                    break;
+                }
+                Waiter next = owner < 0 ? null : waiting.get(owner);
+                if(next == null || steps <= 0) {
+                    return;
+                }
+                if(next.xid > victim.xid) {
+                    victim = next;
+                }
+                w = next;
+            }
+            // 找到环, 在检测锁内撤下牺牲者, 保证同一个环只会处理一次
+            if(!cancel(victim)) {
+                return;
+            }
+            victim.aborted = true;
+        } finally {
+            detectLock.unlock();
+        }
+        LockSupport.unpark(victim.thread);
+    }
+
+    private long ownerOf(long uid) {
+        Shard shard = shard(uid);
+        shard.lock.lock();
+        try {
+            LockState state = shard.locks.get(uid);
+            return state == null ? -1 : state.owner;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    private List<Long> held(long xid) {
+        return held.computeIfAbsent(xid, k -> new ArrayList<>());
+    }
+
+    private Shard shard(long uid) {
+        long h = uid * 0x9E3779B97F4A7C15L;
+        return shards[(int)(h >>> 58) & (SHARDS - 1)];
+    }
+}
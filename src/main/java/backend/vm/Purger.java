@@ -0,0 +1,292 @@
+package backend.vm;
+
+import backend.common.SubArray;
+import backend.dm.DataItemScanner;
+import backend.tm.TransactionManager;
+import backend.utils.Types;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 后台清理所有事务都已看不到的旧版本
+ *
+ * 每一轮先由vm算出清理界限horizon: XMAX已提交且小于horizon的版本对现在和以后的所有快照都不可见。
+ * 要清理的行由vm在事务结束时交过来(事务改写过的行), 事务已提交且在horizon之前或者已回滚时处理, 对其中的每一行:
+ *   版本链开头连续的死版本中, 第一个版本的uid是行的uid必须保留, 把它的NEXT直接指向第一个活的版本,
+ *   中间的版本摘下后标记为非法。
+ *   整行都死了(已提交的删除)时, 第一个版本作为墓碑留下, NEXT清零, 之后的版本标记为非法:
+ *   读已提交的事务可能还拿着这个行uid, 它再来读写时看到的是已删除, 而不是复用这个位置的其他行。
+ *   XMAX已回滚的版本是行的最新版本, 它的NEXT指向被回滚的版本, 先清掉这个指针, 被回滚的版本再标记为非法。
+ * 插入被回滚的行(XMIN已回滚)对谁都不可见, 连同第一个版本一起标记为非法。它们不在交过来的行里,
+ * 只有启动时(崩溃恢复回滚的事务)和dm报告回滚的事务提前写入过日志时扫描整个库找出来。
+ * 摘下版本和标记非法都记日志, 页面空间要等vm中可能还拿着旧指针的读者全部退出后才回收, 回收的空间交给PageIndex。
+ * 回滚时dm在内存中撤销了插入的页也在这里回收。
+ * 没有要处理的行和页时这一轮什么都不做; 扫描时每处理BATCH个entry暂停一下, 避免影响前台事务。
+ * 清理失败不影响数据的正确性, 记下失败的轮数和最近一次的错误, 下一轮重试。
+ */
+class Purger implements Runnable {
+
+    private static final long INTERVAL_MS = 1000;       // 两轮清理之间的间隔
+    private static final int BATCH = 256;               // 每处理这么多个entry或行暂停一次
+    private static final long PAUSE_MS = 2;
+    private static final long GRACE_WAIT_MS = 200;      // 等待旧读者退出的最长时间, 超时后页面留到下一轮回收
+
+    private VersionManagerImpl vm;
+    private TransactionManager tm;
+    private Set<Integer> pendingPages;                  // 有dataitem被标记为非法、等待回收空间的页
+    private Queue<Ended> ended;                         // 结束的事务和它改写过的行
+    private boolean needScan;                           // 下一轮扫描整个库
+    private volatile boolean closed;
+    private Thread worker;
+
+    // 上一轮的统计
+    volatile long purgedVersions;
+    volatile long reclaimedBytes;
+    volatile long failedRounds;
+    volatile Exception lastError;
+
+    private static class Ended {
+        final long xid;
+        final List<Long> rows;
+
+        Ended(long xid, List<Long> rows) {
+            this.xid = xid;
+            this.rows = rows;
+        }
+    }
+
+    Purger(VersionManagerImpl vm) {
+        this.vm = vm;
+        this.tm = vm.tm;
+        this.pendingPages = new TreeSet<>();
+        this.ended = new ConcurrentLinkedQueue<>();
+        this.needScan = true;
+    }
+
+    // xid结束(提交或回滚)时调用, rows为它改写过的行
+    void enqueue(long xid, List<Long> rows) {
+        if(rows != null && !rows.isEmpty()) {
+            ended.add(new Ended(xid, rows));
+        }
+    }
+
+    void start() {
+        worker = new Thread(this, "vm-purge");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    void close() {
+        closed = true;
+        if(worker != null) {
+            worker.interrupt();
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while(!closed) {
+            try {
+                Thread.sleep(INTERVAL_MS);
+                purge();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                if(closed) return;
+                failedRounds ++;
+                lastError = e;
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // 清理一轮, 返回标记为非法的版本数
+    synchronized long purge() throws Exception {
+        long horizon = vm.purgeHorizon();
+        // 回滚时撤销了插入的页, 空间和标记为非法的dataitem一起回收
+        pendingPages.addAll(vm.dm.takeUndonePages());
+        if(vm.dm.takeSpilledAbort()) {
+            needScan = true;
+        }
+
+        // 取出可以处理的事务, 还不能处理的放回
+        Set<Long> rows = new HashSet<>();
+        List<Ended> notReady = new ArrayList<>();
+        Ended e;
+        while((e = ended.poll()) != null) {
+            if(tm.isAborted(e.xid) || (e.xid < horizon && tm.isCommitted(e.xid))) {
+                rows.addAll(e.rows);
+            } else {
+                notReady.add(e);
+            }
+        }
+        ended.addAll(notReady);
+
+        long purged = 0;
+        if(needScan) {
+            // 扫描会遇到所有需要清理的行, 交过来的行不用再单独处理
+            needScan = false;
+            purged = scan(horizon);
+        } else {
+            int done = 0;
+            for(long row : rows) {
+                if(closed) {
+                    break;
+                }
+                purged += purgeRow(row, horizon);
+                if(++ done % BATCH == 0) {
+                    Thread.sleep(PAUSE_MS);
+                }
+            }
+        }
+        if(purged == 0 && pendingPages.isEmpty()) {
+            purgedVersions = 0;
+            reclaimedBytes = 0;
+            return 0;
+        }
+
+        long reclaimed = 0;
+        if(!pendingPages.isEmpty() && vm.epoch.synchronize(GRACE_WAIT_MS)) {
+            for(int pgno : pendingPages) {
+                reclaimed += vm.dm.reclaim(pgno);
+            }
+            pendingPages.clear();
+        }
+        purgedVersions = purged;
+        reclaimedBytes = reclaimed;
+        return purged;
+    }
+
+    // 扫描整个库, 清理所有有死版本的行和插入被回滚的行
+    private long scan(long horizon) throws Exception {
+        Set<Long> rows = new HashSet<>();
+        long purged = 0;
+        int scanned = 0;
+        DataItemScanner scanner = vm.dm.scan();
+        try {
+            while(scanner.next() && !closed) {
+                long uid = scanner.uid();
+                SubArray sa = scanner.data();
+                long xminWord = Entry.parseXminWord(sa);
+                long xmaxWord = Entry.parseXmaxWord(sa);
+                long row = Entry.parseRow(sa, uid);
+                if(isAborted(xminWord)) {
+                    // 被回滚的版本可能还挂在行的最新版本上, 每次都先清理它所在的行
+                    // 它本身就是行的第一个版本(插入被回滚)时, purgeRow会连同它一起标记为非法
+                    purged += purgeRow(row, horizon);
+                    if(row != uid && vm.dm.free(uid)) {
+                        pendingPages.add(Types.uidToPgno(uid));
+                        purged ++;
+                    }
+                } else if(isDead(xmaxWord, horizon) && rows.add(row)) {
+                    purged += purgeRow(row, horizon);
+                }
+                if(++ scanned % BATCH == 0) {
+                    Thread.sleep(PAUSE_MS);
+                }
+            }
+        } finally {
+            scanner.close();
+        }
+        return purged;
+    }
+
+    // 清理一行开头的死版本, 返回标记为非法的版本数
+    private long purgeRow(long row, long horizon) throws Exception {
+        List<Entry> chain = new ArrayList<>();
+        try {
+            Entry entry = vm.getEntry(row);
+            while(entry != null) {
+                chain.add(entry);
+                long next = entry.getNext();
+                if(next == 0) {
+                    break;
+                }
+                long xmax = entry.getXmax();
+                if(tm.isAborted(xmax)) {
+                    entry.casNext(xmax, next, 0);
+                    break;
+                }
+                entry = vm.getEntry(next);
+            }
+            if(chain.isEmpty()) {
+                return 0;
+            }
+
+            int dead = 0;
+            while(dead < chain.size() && isDead(chain.get(dead), horizon)) {
+                dead ++;
+            }
+            Entry head = chain.get(0);
+            int from;
+            if(dead == chain.size()) {
+                // 整行都已死去; 链没有走完时不处理
+                if(chain.get(dead-1).getNext() != 0) {
+                    return 0;
+                }
+                if(isAborted(head.getXminWord())) {
+                    // 插入被回滚, 没有事务拿到过这个行uid, 连同第一个版本一起标记为非法
+                    from = 0;
+                } else {
+                    // 已提交的删除, 第一个版本留作墓碑, 行uid不会被复用
+                    if(dead >= 2 && !head.casNext(head.getXmax(), chain.get(1).getUid(), 0)) {
+                        return 0;
+                    }
+                    from = 1;
+                }
+            } else if(dead >= 2) {
+                // 行的uid保留, 让它直接指向第一个活的版本
+                if(!head.casNext(head.getXmax(), chain.get(1).getUid(), chain.get(dead).getUid())) {
+                    return 0;
+                }
+                from = 1;
+            } else {
+                return 0;
+            }
+            long purged = 0;
+            for(int i = dead - 1; i >= from; i --) {
+                long uid = chain.get(i).getUid();
+                if(vm.dm.free(uid)) {
+                    pendingPages.add(Types.uidToPgno(uid));
+                    purged ++;
+                }
+            }
+            return purged;
+        } finally {
+            for(Entry e : chain) {
+                e.release();
+            }
+        }
+    }
+
+    private boolean isDead(Entry entry, long horizon) {
+        return isAborted(entry.getXminWord()) || isDead(entry.getXmaxWord(), horizon);
+    }
+
+    // XMAX在horizon之前提交
+    private boolean isDead(long xmaxWord, long horizon) {
+        long xmax = xmaxWord & Entry.XID_MASK;
+        if(xmax == 0 || xmax >= horizon) {
+            return false;
+        }
+        return (xmaxWord & Entry.HINT_COMMITTED) != 0 || tm.isCommitted(xmax);
+    }
+
+    private boolean isAborted(long word) {
+        if((word & Entry.HINT_ABORTED) != 0) {
+            return true;
+        }
+        return (word & Entry.HINT_COMMITTED) == 0 && tm.isAborted(word & Entry.XID_MASK);
+    }
+}
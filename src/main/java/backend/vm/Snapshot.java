@@ -0,0 +1,41 @@
+package backend.vm;
+
+import backend.tm.TransactionManagerImpl;
+
+import java.util.Arrays;
+
+/**
+ * 事务开始时的快照
+ *
+ * xmax: 快照时下一个将要分配的XID, 不小于它的事务都在快照之后开始;
+ * active: 快照时正在进行的读写事务, 有序; xmin为其中最小的XID, 没有时等于xmax。
+ * 快照不可变。VersionManagerImpl在事务开始和结束时只改动有序的正在进行的事务集合(O(log n)),
+ * 需要快照时才从集合生成active数组, 生成一次是O(n), 集合没有变化之前的快照共享同一个数组;
+ * 读已提交的事务不用快照, 不会触发生成。判断是否在快照中是一次二分查找, 不装箱。
+ */
+public class Snapshot {
+    static final long[] EMPTY = new long[0];
+
+    public final long xmin;
+    public final long xmax;
+    final long[] active;
+
+    Snapshot(long[] active, long xmax) {
+        this.active = active;
+        this.xmax = xmax;
+        this.xmin = active.length == 0 ? xmax : active[0];
+    }
+
+    // xid是否是快照时正在进行的事务
+    public boolean contains(long xid) {
+        if(xid < xmin || xid >= xmax || xid == TransactionManagerImpl.SUPER_XID) {
+            return false;
+        }
+        return Arrays.binarySearch(active, xid) >= 0;
+    }
+
+    // 快照时xid是否已经结束: 在快照之前开始, 且不在正在进行的事务中
+    public boolean isBefore(long xid) {
+        return xid < xmax && !contains(xid);
+    }
+}
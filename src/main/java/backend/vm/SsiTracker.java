@@ -0,0 +1,234 @@
+package backend.vm;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 可串行化快照隔离(SSI)中的读写反依赖跟踪
+ *
+ * 只跟踪可串行化级别的事务。读在行的uid上留下SIREAD标记, 全表扫描标记整个库,
+ * 事务结束后标记仍然保留, 直到和它并发的事务都已结束。
+ * 两个并发事务之间 R读到的版本被W改写 记为一条边 R -rw-> W, 在两处发现:
+ *   W改写一行时, 这一行上留有SIREAD标记的R(以及正在全表扫描的R);
+ *   R读一行时, 看不到的更新的版本或者读到的版本的XMAX是并发的W。
+ * 边的两端互相记下对方, 既有指向自己又有从自己指出的边(对方都没有回滚)的事务是危险结构的中间点:
+ * 它还没提交时在它提交时失败, 已经提交时让当前事务失败。
+ * 不区分三个事务的提交顺序, 会有一些不必要的回滚, 但不会漏掉。
+ */
+class SsiTracker {
+
+    static class State {
+        final long xid;
+        final long beginSeq;                // 开始时的提交序号
+        long commitSeq = Long.MAX_VALUE;    // 提交序号, 未提交时为最大值
+        Set<State> in = new HashSet<>();    // 读写反依赖指向自己的事务
+        Set<State> out = new HashSet<>();   // 读写反依赖从自己指向的事务
+        boolean aborted;
+        boolean doomed;                     // 提交时必须失败
+        volatile boolean scanned;           // 做过全表扫描
+        Set<Long> reads = ConcurrentHashMap.newKeySet();
+
+        State(long xid, long beginSeq) {
+            this.xid = xid;
+            this.beginSeq = beginSeq;
+        }
+
+        boolean committed() {
+            return commitSeq != Long.MAX_VALUE;
+        }
+
+        // 回滚的事务不构成依赖
+        boolean isPivot() {
+            return live(in) && live(out);
+        }
+
+        private static boolean live(Set<State> partners) {
+            for(State s : partners) {
+                if(!s.aborted) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private Map<Long, State> states;                // 所有仍需要跟踪的事务
+    private Map<Long, Set<Long>> readers;           // 行的uid -> 在这一行上留有SIREAD标记的事务
+    private Set<State> scanners;                    // 做过全表扫描的事务
+    private TreeMap<Long, Integer> activeBegins;    // 未结束事务的开始序号, 用于判断已提交的事务何时可以丢弃
+    private ArrayDeque<State> committed;            // 按提交顺序排列的已提交事务
+    private long commitSeq;
+    private Lock lock;
+
+    SsiTracker() {
+        states = new ConcurrentHashMap<>();
+        readers = new ConcurrentHashMap<>();
+        scanners = ConcurrentHashMap.newKeySet();
+        activeBegins = new TreeMap<>();
+        committed = new ArrayDeque<>();
+        lock = new ReentrantLock();
+    }
+
+    State begin(long xid) {
+        lock.lock();
+        try {
+            State s = new State(xid, commitSeq);
+            activeBegins.merge(s.beginSeq, 1, Integer::sum);
+            states.put(xid, s);
+            return s;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // r读了row, 读到的版本的XMAX为xmax(没有时为0)
+    void read(State r, long row, long xmax) {
+        mark(r, row);
+        if(xmax != 0) {
+            conflict(r, xmax);
+        }
+    }
+
+    // 在row上留下SIREAD标记, 要在读取版本之前调用, 保证和同时改写这一行的事务至少有一方能发现冲突
+    void mark(State r, long row) {
+        if(r.reads.add(row)) {
+            readers.compute(row, (k, rs) -> {
+                if(rs == null) {
+                    rs = ConcurrentHashMap.newKeySet();
+                }
+                rs.add(r.xid);
+                return rs;
+            });
+        }
+    }
+
+    void scan(State r) {
+        r.scanned = true;
+        scanners.add(r);
+    }
+
+    // w改写了row(更新或删除), row为0时表示插入
+    void write(State w, long row) {
+        if(row != 0) {
+            Set<Long> rs = readers.get(row);
+            if(rs != null) {
+                for(long xid : rs) {
+                    State r = states.get(xid);
+                    if(r != null) {
+                        edge(r, w, w);
+                    }
+                }
+            }
+        }
+        for(State r : scanners) {
+            edge(r, w, w);
+        }
+    }
+
+    // 提交前检查, 是危险结构的中间点时返回false, 事务应当回滚
+    boolean commit(State s) {
+        lock.lock();
+        try {
+            if(s.doomed || s.isPivot()) {
+                return false;
+            }
+            s.commitSeq = ++ commitSeq;
+            endActive(s);
+            committed.addLast(s);
+            cleanup();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 回滚的事务不构成任何依赖, 直接丢弃
+    void abort(State s) {
+        lock.lock();
+        try {
+            s.aborted = true;
+            endActive(s);
+            forget(s);
+            cleanup();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // r看不到由xid创建的版本, 或者r读到的版本被xid改写, xid和r并发时记为 r -rw-> xid
+    void conflict(State r, long xid) {
+        if(xid == r.xid) {
+            return;
+        }
+        State w = states.get(xid);
+        if(w != null) {
+            edge(r, w, r);
+        }
+    }
+
+    // 记录 r -rw-> w, current为正在执行操作的事务
+    private void edge(State r, State w, State current) {
+        if(r == w) {
+            return;
+        }
+        lock.lock();
+        try {
+            // 一方在另一方开始之前就已提交, 不是并发事务
+            if(r.commitSeq <= w.beginSeq || w.commitSeq <= r.beginSeq) {
+                return;
+            }
+            if(!states.containsKey(r.xid) || !states.containsKey(w.xid)) {
+                return;
+            }
+            r.out.add(w);
+            w.in.add(r);
+            doomPivot(r, current);
+            doomPivot(w, current);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 还没提交的中间点在提交时检查, 已经提交的中间点无法回滚, 只能让当前事务失败
+    private void doomPivot(State s, State current) {
+        if(s.committed() && s.isPivot()) {
+            current.doomed = true;
+        }
+    }
+
+    private void endActive(State s) {
+        activeBegins.computeIfPresent(s.beginSeq, (k, n) -> n == 1 ? null : n - 1);
+    }
+
+    // 已提交的事务在所有和它并发的事务都结束后丢弃
+    private void cleanup() {
+        long oldest = activeBegins.isEmpty() ? commitSeq : activeBegins.firstKey();
+        while(!committed.isEmpty() && committed.peekFirst().commitSeq <= oldest) {
+            forget(committed.pollFirst());
+        }
+    }
+
+    private void forget(State s) {
+        states.remove(s.xid);
+        // 已提交的事务被丢弃时不会再有新的边, 断开引用, 让它能被回收
+        for(State r : s.in) {
+            r.out.remove(s);
+        }
+        for(State w : s.out) {
+            w.in.remove(s);
+        }
+        scanners.remove(s);
+        for(long row : s.reads) {
+            readers.computeIfPresent(row, (k, rs) -> {
+                rs.remove(s.xid);
+                return rs.isEmpty() ? null : rs;
+            });
+        }
+    }
+}
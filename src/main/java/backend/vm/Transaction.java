@@ -1,36 +1,38 @@
 package backend.vm;
 
 
-import backend.tm.TransactionManagerImpl;
-
-import java.util.HashMap;
-import java.util.Map;
-
 // vm对一个事务的抽象
 public class Transaction {
+    // 隔离级别: 0 读已提交, 1 可重复读, 2 可串行化(在可重复读的快照上做SSI检查)
+    public static final int SERIALIZABLE = 2;
+
     public long xid;
     public int level;
-    public Map<Long, Boolean> snapshot;
+    public Snapshot snapshot;       // 读已提交时为null
+    public boolean readOnly;        // 只读事务没有分配XID, xid为负数的句柄
     public Exception err;
     public boolean autoAborted;
+    SsiTracker.State ssi;           // 可串行化事务的读写依赖, 其他级别为null
 
-    public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {
+    // snapshot为事务开始前的快照, 不包含自己
+    public static Transaction newTransaction(long xid, int level, Snapshot snapshot) {
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
         if(level != 0) {
-            t.snapshot = new HashMap<>();
-            for(Long x : active.keySet()) {
-                t.snapshot.put(x, true);
-            }
+            t.snapshot = snapshot;
         }
         return t;
     }
 
+    // 只读事务: handle为负数句柄, 直接共享当前快照
+    public static Transaction newReadOnlyTransaction(long handle, int level, Snapshot snapshot) {
+        Transaction t = newTransaction(handle, level, snapshot);
+        t.readOnly = true;
+        return t;
+    }
+
     public boolean isInSnapshot(long xid) {
-        if(xid == TransactionManagerImpl.SUPER_XID) {
-            return false;
-        }
-        return snapshot.containsKey(xid);
+        return snapshot.contains(xid);
     }
 }
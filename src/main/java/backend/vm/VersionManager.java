@@ -4,14 +4,24 @@ package backend.vm;
 import backend.dm.DataManager;
 import backend.tm.TransactionManager;
 
+import java.util.List;
+
 public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;
+    int read(long xid, long uid, byte[] buf) throws Exception;
+    byte[][] readMany(long xid, long[] uids) throws Exception;
+    EntryScanner scan(long xid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    long[] insertBatch(long xid, List<byte[]> datas) throws Exception;
     boolean delete(long xid, long uid) throws Exception;
+    boolean update(long xid, long uid, byte[] data) throws Exception;
 
     long begin(int level);
+    long beginReadOnly(int level);
     void commit(long xid) throws Exception;
+    void commitAsync(long xid) throws Exception;
     void abort(long xid);
+    void close();
 
     public static VersionManager newVersionManager(TransactionManager tm, DataManager dm) {
         return new VersionManagerImpl(tm, dm);
@@ -3,14 +3,24 @@ package backend.vm;
 
 
 import backend.common.AbstractCache;
+import backend.common.EpochGuard;
+import backend.common.MemoryBudget;
 import backend.dm.DataManager;
+import backend.dm.dataItem.DataItem;
 import backend.tm.TransactionManager;
 import backend.tm.TransactionManagerImpl;
 import backend.utils.Panic;
 import common.Error;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -18,114 +28,308 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     TransactionManager tm;
     DataManager dm;
-    Map<Long, Transaction> activeTransaction;
+    Map<Long, Transaction> activeTransaction;   // 所有未结束的事务, 查找不加锁
+    NavigableSet<Long> running;                 // 已开始、还没有移出快照的读写事务, 在lock下修改, 查询不加锁
+    volatile long nextXid;                      // 下一个读写事务的XID, 即当前快照的xmax
+    private volatile Snapshot current;          // 由running生成的快照, running变化后置为null, 需要时再生成
     Lock lock;
     LockTable lt;
+    AtomicLong readOnlyHandle;      // 只读事务的句柄, 从-1开始递减, 不占用XID
+    EpochGuard epoch;               // 沿版本链读取的调用都在其中, 清理线程等它们退出后才回收空间
+    Purger purger;
+    SsiTracker ssi;
+    CommitFlusher flusher;
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
-        super(0);
+        super(dm.memoryBudget().slice(MemoryBudget.ENTRY_SHARE));
         this.tm = tm;
         this.dm = dm;
-        this.activeTransaction = new HashMap<>();
+        this.activeTransaction = new ConcurrentHashMap<>();
         activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
+        this.running = new ConcurrentSkipListSet<>();
+        this.nextXid = tm.nextXID();
+        this.current = new Snapshot(Snapshot.EMPTY, nextXid);
         this.lock = new ReentrantLock();
         this.lt = new LockTable();
+        this.readOnlyHandle = new AtomicLong();
+        this.epoch = new EpochGuard();
+        this.ssi = new SsiTracker();
+        this.flusher = new CommitFlusher(dm, tm);
+        flusher.start();
+        this.purger = new Purger(this);
+        purger.start();
     }
 
     @Override
     public byte[] read(long xid, long uid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if(t.err != null) {
             throw t.err;
         }
 
-        Entry entry = null;
+        int token = epoch.enter();
         try {
-            entry = super.get(uid);
-        } catch(Exception e) {
-            if(e == Error.NullEntryException) {
-                return null;
-            } else {
-                throw e;
-            }
+            return read(t, uid);
+        } finally {
+            epoch.exit(token);
+        }
+    }
+
+    byte[] read(Transaction t, long uid) throws Exception {
+        Entry entry = visibleVersion(t, uid);
+        if(entry == null) {
+            return null;
         }
         try {
-            if(Visibility.isVisible(tm, t, entry)) {
-                return entry.data();
-            } else {
-                return null;
+            return entry.data();
+        } finally {
+            entry.release();
+        }
+    }
+
+    // 只判断uid这一个版本, 不沿版本链查找, 用于扫描
+    byte[] readVersion(Transaction t, long uid) throws Exception {
+        Entry entry = getEntry(uid);
+        if(entry == null) {
+            return null;
+        }
+        try {
+            boolean visible = Visibility.isVisible(tm, t, entry);
+            if(t.ssi != null) {
+                ssi.conflict(t.ssi, visible ? entry.getXmax() : entry.getXmin());
             }
+            return visible ? entry.data() : null;
         } finally {
             entry.release();
         }
     }
 
+    // 读到调用者提供的buf中, 返回数据长度, 不可见时返回-1
+    // buf放不下时不拷贝, 只返回需要的长度
+    @Override
+    public int read(long xid, long uid, byte[] buf) throws Exception {
+        Transaction t = activeTransaction.get(xid);
+
+        if(t.err != null) {
+            throw t.err;
+        }
+
+        int token = epoch.enter();
+        try {
+            Entry entry = visibleVersion(t, uid);
+            if(entry == null) {
+                return -1;
+            }
+            try {
+                return entry.data(buf);
+            } finally {
+                entry.release();
+            }
+        } finally {
+            epoch.exit(token);
+        }
+    }
+
+    // 批量读, 先通过dm按页把一批dataitem读进缓存, 再逐个做可见性判断
+    // 每批最多dm.maxReadManyPages()个uid, 同时引用的页不超过页面缓存预算的一半
+    // 返回的数组与uids一一对应, 不可见的位置为null
+    @Override
+    public byte[][] readMany(long xid, long[] uids) throws Exception {
+        Transaction t = activeTransaction.get(xid);
+
+        if(t.err != null) {
+            throw t.err;
+        }
+
+        byte[][] result = new byte[uids.length][];
+        int batch = dm.maxReadManyPages();
+        int token = epoch.enter();
+        try {
+            for(int from = 0; from < uids.length; from += batch) {
+                int to = Math.min(uids.length, from + batch);
+                long[] part = from == 0 && to == uids.length ? uids : Arrays.copyOfRange(uids, from, to);
+                DataItem[] dis = dm.readMany(part);
+                try {
+                    for(int i = 0; i < part.length; i ++) {
+                        if(dis[i] == null) {
+                            continue;
+                        }
+                        Entry entry = visibleVersion(t, part[i]);
+                        if(entry == null) {
+                            continue;
+                        }
+                        try {
+                            result[from + i] = entry.data();
+                        } finally {
+                            entry.release();
+                        }
+                    }
+                } finally {
+                    for(DataItem di : dis) {
+                        if(di != null) di.release();
+                    }
+                }
+            }
+            return result;
+        } finally {
+            epoch.exit(token);
+        }
+    }
+
+    // 按页顺序扫描xid可见的所有entry
+    @Override
+    public EntryScanner scan(long xid) throws Exception {
+        Transaction t = activeTransaction.get(xid);
+
+        if(t.err != null) {
+            throw t.err;
+        }
+
+        if(t.ssi != null) {
+            ssi.scan(t.ssi);
+        }
+        return new EntryScanner(this, t, dm.scan(), epoch.enter());
+    }
+
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if(t.err != null) {
             throw t.err;
         }
+        if(t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
 
         byte[] raw = Entry.wrapEntryRaw(xid, data);
-        return dm.insert(xid, raw);
+        long uid = dm.insert(xid, raw);
+        if(t.ssi != null) {
+            ssi.write(t.ssi, 0);
+        }
+        return uid;
+    }
+
+    @Override
+    public long[] insertBatch(long xid, List<byte[]> datas) throws Exception {
+        Transaction t = activeTransaction.get(xid);
+
+        if(t.err != null) {
+            throw t.err;
+        }
+        if(t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
+
+        List<byte[]> raws = new ArrayList<>(datas.size());
+        for(byte[] data : datas) {
+            raws.add(Entry.wrapEntryRaw(xid, data));
+        }
+        long[] uids = dm.insertBatch(xid, raws);
+        if(t.ssi != null) {
+            ssi.write(t.ssi, 0);
+        }
+        return uids;
     }
 
     @Override
     public boolean delete(long xid, long uid) throws Exception {
-        lock.lock();
+        int token = epoch.enter();
+        try {
+            return writeVersion(xid, uid, null);
+        } finally {
+            epoch.exit(token);
+        }
+    }
+
+    // 原地更新一行, 行的uid保持不变, 旧版本通过NEXT指向新版本
+    @Override
+    public boolean update(long xid, long uid, byte[] data) throws Exception {
+        int token = epoch.enter();
+        try {
+            return writeVersion(xid, uid, data);
+        } finally {
+            epoch.exit(token);
+        }
+    }
+
+    // data为null时删除, 否则插入新版本并挂到版本链末尾
+    private boolean writeVersion(long xid, long uid, byte[] data) throws Exception {
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if(t.err != null) {
             throw t.err;
         }
-        Entry entry = null;
+        if(t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
+        Entry visible = visibleVersion(t, uid);
+        if(visible == null) {
+            return false;
+        }
+        long row;
+        try {
+            row = visible.getRow();
+        } finally {
+            visible.release();
+        }
+        // 行锁加在行的uid上, 需要等待时在lt.add中阻塞, 直到获得锁
         try {
-            entry = super.get(uid);
+            lt.add(xid, row);
         } catch(Exception e) {
-            if(e == Error.NullEntryException) {
-                return false;
-            } else {
-                throw e;
-            }
+            t.err = e == Error.LockWaitTimeoutException ? e : Error.ConcurrentUpdateException;
+            internAbort(xid, true);
+            t.autoAborted = true;
+            throw t.err;
+        }
+
+        Entry entry = latestVersion(row);
+        if(entry == null) {
+            return false;
         }
         try {
-            if(!Visibility.isVisible(tm, t, entry)) {
+            if(entry.getXmax() == xid) {
                 return false;
             }
-            Lock l = null;
-            try {
-                l = lt.add(xid, uid);
-            } catch(Exception e) {
+
+            if(Visibility.isVersionSkip(tm, t, entry)) {
                 t.err = Error.ConcurrentUpdateException;
                 internAbort(xid, true);
                 t.autoAborted = true;
                 throw t.err;
             }
-            if(l != null) {
-                l.lock();
-                l.unlock();
-            }
-
-            if(entry.getXmax() == xid) {
-                return false;
-            }
 
-            if(Visibility.isVersionSkip(tm, t, entry)) {
+            if(!Visibility.isVisible(tm, t, entry)) {
+                // 已经被提交的事务删除, 或者(可重复读)快照之后又有新版本提交
+                long xmax = entry.getXmax();
+                if(t.level == 0 || (xmax != 0 && tm.isCommitted(xmax))) {
+                    return false;
+                }
                 t.err = Error.ConcurrentUpdateException;
                 internAbort(xid, true);
                 t.autoAborted = true;
                 throw t.err;
             }
 
-            entry.setXmax(xid);
+            if(!entry.isVersioned()) {
+                if(data != null) {
+                    throw Error.UnversionedEntryException;
+                }
+                entry.setXmax(xid);
+                if(t.ssi != null) {
+                    ssi.write(t.ssi, row);
+                }
+                return true;
+            }
+            long next = 0;
+            if(data != null) {
+                next = dm.insert(xid, Entry.wrapEntryRaw(xid, data, row));
+            }
+            entry.setXmaxAndNext(xid, next);
+            if(t.ssi != null) {
+                ssi.write(t.ssi, row);
+            }
             return true;
 
         } finally {
@@ -133,24 +337,166 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
     }
 
+    // 从行的uid出发沿版本链找到第一个对t可见的版本, 返回的entry由调用者release
+    // 链中间的版本被清理线程摘下并标记为非法时, 从行的uid重新开始
+    // 可串行化事务在读之前留下SIREAD标记, 并记录看不到的新版本和读到的版本的改写者
+    private Entry visibleVersion(Transaction t, long uid) throws Exception {
+        if(t.ssi != null) {
+            ssi.mark(t.ssi, uid);
+        }
+        long next = uid;
+        while(next != 0) {
+            Entry entry = getEntry(next);
+            if(entry == null) {
+                if(next == uid) {
+                    return null;
+                }
+                next = uid;
+                continue;
+            }
+            if(Visibility.isVisible(tm, t, entry)) {
+                if(t.ssi != null) {
+                    ssi.read(t.ssi, entry.getRow(), entry.getXmax());
+                }
+                return entry;
+            }
+            if(t.ssi != null) {
+                ssi.conflict(t.ssi, entry.getXmin());
+            }
+            next = entry.getNext();
+            entry.release();
+        }
+        return null;
+    }
+
+    // 版本链上最新的版本, 调用者持有行锁, 链上的XMAX只可能是已提交、已回滚或调用者自己
+    // XMAX已回滚的版本上NEXT指向的是被回滚的版本, 它才是最新的
+    private Entry latestVersion(long row) throws Exception {
+        Entry entry = getEntry(row);
+        while(entry != null) {
+            long next = entry.getNext();
+            if(next == 0 || tm.isAborted(entry.getXmax())) {
+                return entry;
+            }
+            entry.release();
+            entry = getEntry(next);
+            if(entry == null) {
+                entry = getEntry(row);
+            }
+        }
+        return null;
+    }
+
+    // 清理界限: XMAX已提交且小于它的版本对现在和以后的所有快照都不可见
+    // 读已提交的事务只看最新提交的版本, 不会用到这些版本, 不参与计算
+    // 它们手里的行uid在行被删除后仍然有效: 清理时保留行的第一个版本作为墓碑, 这个uid不会被复用
+    // 异步提交还没有持久化的事务崩溃后会回滚, 它删掉的版本也不能清理
+    long purgeHorizon() {
+        long horizon = Math.min(runningXmin(), flusher.minPending());
+        for(Transaction t : activeTransaction.values()) {
+            if(t.level != 0 && t.snapshot != null && t.snapshot.xmin < horizon) {
+                horizon = t.snapshot.xmin;
+            }
+        }
+        return horizon;
+    }
+
+    // 正在进行的读写事务中最小的XID, 没有时为nextXid
+    private long runningXmin() {
+        long xmax = nextXid;
+        for(long xid : running) {
+            return xid;
+        }
+        return xmax;
+    }
+
+    // xid在vm看来是否还未结束, 提交后到移出快照之前的事务也算
+    boolean isRunning(long xid) {
+        return running.contains(xid);
+    }
+
+    // 当前的快照, 正在进行的事务变化后第一次调用时生成
+    private Snapshot currentSnapshot() {
+        Snapshot s = current;
+        if(s != null) {
+            return s;
+        }
+        lock.lock();
+        try {
+            if(current == null) {
+                long[] active = new long[running.size()];
+                int i = 0;
+                for(long xid : running) {
+                    active[i ++] = xid;
+                }
+                current = new Snapshot(active, nextXid);
+            }
+            return current;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Entry getEntry(long uid) throws Exception {
+        try {
+            return super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
     @Override
     public long begin(int level) {
+        long xid;
         lock.lock();
         try {
-            long xid = tm.begin();
-            Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
+            xid = tm.begin();
+            // 读已提交的事务不用快照, 不生成active数组
+            Snapshot s = level == 0 ? null : new Snapshot(currentSnapshot().active, xid);
+            Transaction t = Transaction.newTransaction(xid, level, s);
+            if(level == Transaction.SERIALIZABLE) {
+                t.ssi = ssi.begin(xid);
+            }
             activeTransaction.put(xid, t);
-            return xid;
+            running.add(xid);
+            nextXid = xid + 1;
+            current = null;
         } finally {
             lock.unlock();
         }
+        // 事务的第一次写入之前登记即可, 不用占着lock
+        dm.startRedo(xid);
+        return xid;
+    }
+
+    // 只读事务不分配XID, 直接共享当前快照, 快照已经生成时不加锁; 提交和回滚都不访问磁盘
+    @Override
+    public long beginReadOnly(int level) {
+        long handle = readOnlyHandle.decrementAndGet();
+        Transaction t = Transaction.newReadOnlyTransaction(handle, level, level == 0 ? null : currentSnapshot());
+        if(level == Transaction.SERIALIZABLE) {
+            t.ssi = ssi.begin(handle);
+        }
+        activeTransaction.put(handle, t);
+        return handle;
     }
 
     @Override
     public void commit(long xid) throws Exception {
-        lock.lock();
+        internCommit(xid, false);
+    }
+
+    // 异步提交: 不等日志和状态落盘就返回, 由flusher在WINDOW_MS内持久化, 崩溃时可能丢失最近的提交
+    @Override
+    public void commitAsync(long xid) throws Exception {
+        internCommit(xid, true);
+    }
+
+    private void internCommit(long xid, boolean async) throws Exception {
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         try {
             if(t.err != null) {
@@ -162,12 +508,32 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             Panic.panic(n);
         }
 
-        lock.lock();
-        activeTransaction.remove(xid);
-        lock.unlock();
+        // 可串行化事务是危险结构的中间点时提交失败并回滚
+        if(t.ssi != null && !ssi.commit(t.ssi)) {
+            t.err = Error.SerializationFailureException;
+            internAbort(xid, true);
+            t.autoAborted = true;
+            throw t.err;
+        }
 
-        lt.remove(xid);
-        tm.commit(xid);
+        activeTransaction.remove(xid);
+        if(t.readOnly) {
+            return;
+        }
+        // 缓冲的日志和提交日志作为连续的一段写入, 之后的落盘会带上它们
+        dm.commitRedo(xid);
+        // 先提交再放锁, 拿到行锁的事务看到的XMAX一定已经结束
+        if(async) {
+            flusher.commit(xid);
+        } else {
+            // 提交日志落盘即持久化, 之前异步提交的事务也一起持久化, 状态写入xid文件不再落盘
+            flusher.flush();
+            tm.commitDurable(Collections.singletonList(xid));
+        }
+        // 改写过的行交给清理线程, 不用扫描整个库
+        purger.enqueue(xid, lt.remove(xid));
+        // 提交状态可见之后再移出快照, 否则之后开始的事务会先把它当作已结束但未提交
+        endSnapshot(xid);
     }
 
     @Override
@@ -176,22 +542,52 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     }
 
     private void internAbort(long xid, boolean autoAborted) {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
         if(!autoAborted) {
             activeTransaction.remove(xid);
         }
-        lock.unlock();
 
-        if(t.autoAborted) return;
-        lt.remove(xid);
-        tm.abort(xid);
+        if(t.ssi != null && !t.autoAborted) {
+            ssi.abort(t.ssi);
+        }
+        if(t.readOnly) return;
+        if(!t.autoAborted) {
+            // 还在缓冲中的修改直接在内存中撤销, 不用写日志
+            dm.abortRedo(xid);
+            tm.abort(xid);
+            purger.enqueue(xid, lt.remove(xid));
+        }
+        if(!autoAborted) {
+            endSnapshot(xid);
+        }
+    }
+
+    // 事务结束后从当前快照中去掉
+    private void endSnapshot(long xid) {
+        lock.lock();
+        try {
+            running.remove(xid);
+            current = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        purger.close();
+        flusher.close();
     }
 
     public void releaseEntry(Entry entry) {
         super.release(entry.getUid());
     }
 
+    @Override
+    protected long weigh(Entry entry) {
+        return Entry.SHALLOW_SIZE;
+    }
+
     @Override
     protected Entry getFromFileForCache(long uid) throws Exception {
         Entry entry = Entry.loadEntry(this, uid);
@@ -6,32 +6,83 @@ import backend.tm.TransactionManager;
 public class Visibility {
     
     public static boolean isVersionSkip(TransactionManager tm, Transaction t, Entry e) {
-        long xmax = e.getXmax();
         if(t.level == 0) {
             return false;
         } else {
-            return tm.isCommitted(xmax) && (xmax > t.xid || t.isInSnapshot(xmax));
+            long xmaxWord = e.getXmaxWord();
+            long xmax = xmaxWord & Entry.XID_MASK;
+            return isCommitted(tm, e, xmaxWord, false) && !t.snapshot.isBefore(xmax);
         }
     }
 
+    // 优先使用entry中的提示位, 从tm得到最终状态时顺便设置提示位
     public static boolean isVisible(TransactionManager tm, Transaction t, Entry e) {
+        long xminWord = e.getXminWord();
+        long xmaxWord = e.getXmaxWord();
+        long xmin = xminWord & Entry.XID_MASK;
+        long xmax = xmaxWord & Entry.XID_MASK;
+        boolean xminCommitted = isCommitted(tm, e, xminWord, true);
+        boolean xmaxCommitted = xmax != 0 && isCommitted(tm, e, xmaxWord, false);
+        return isVisible(t, xmin, xmax, xminCommitted, xmaxCommitted);
+    }
+
+    // 不经过缓存的entry, 参数为带提示位的xmin和xmax, 只读取提示位, 不设置
+    public static boolean isVisible(TransactionManager tm, Transaction t, long xminWord, long xmaxWord) {
+        long xmin = xminWord & Entry.XID_MASK;
+        long xmax = xmaxWord & Entry.XID_MASK;
+        boolean xminCommitted = isCommitted(tm, null, xminWord, true);
+        boolean xmaxCommitted = xmax != 0 && isCommitted(tm, null, xmaxWord, false);
+        return isVisible(t, xmin, xmax, xminCommitted, xmaxCommitted);
+    }
+
+    private static boolean isVisible(Transaction t, long xmin, long xmax, boolean xminCommitted, boolean xmaxCommitted) {
         if(t.level == 0) {
-            return readCommitted(tm, t, e);
+            return readCommitted(t, xmin, xmax, xminCommitted, xmaxCommitted);
         } else {
-            return repeatableRead(tm, t, e);
+            return repeatableRead(t, xmin, xmax, xminCommitted, xmaxCommitted);
+        }
+    }
+
+    // word中的XID是否已提交, e不为null时把查到的最终状态写回提示位
+    // 已提交的提示只在提交已经持久化之后设置: vm在tm.commit返回后才把事务移出当前快照, 异步提交的事务要等状态写入文件
+    private static boolean isCommitted(TransactionManager tm, Entry e, long word, boolean isXmin) {
+        if((word & Entry.HINT_COMMITTED) != 0) {
+            return true;
+        }
+        if((word & Entry.HINT_ABORTED) != 0) {
+            return false;
+        }
+        long xid = word & Entry.XID_MASK;
+        boolean committed = tm.isCommitted(xid);
+        if(e == null) {
+            return committed;
+        }
+        long hint = 0;
+        if(committed) {
+            if(!e.isActiveInVM(xid) && tm.isCommitDurable(xid)) {
+                hint = Entry.HINT_COMMITTED;
+            }
+        } else if(tm.isAborted(xid)) {
+            hint = Entry.HINT_ABORTED;
+        }
+        if(hint != 0) {
+            if(isXmin) {
+                e.hintXmin(xid, hint);
+            } else {
+                e.hintXmax(xid, hint);
+            }
         }
+        return committed;
     }
 
-    private static boolean readCommitted(TransactionManager tm, Transaction t, Entry e) {
+    private static boolean readCommitted(Transaction t, long xmin, long xmax, boolean xminCommitted, boolean xmaxCommitted) {
         long xid = t.xid;
-        long xmin = e.getXmin();
-        long xmax = e.getXmax();
         if(xmin == xid && xmax == 0) return true;
 
-        if(tm.isCommitted(xmin)) {
+        if(xminCommitted) {
             if(xmax == 0) return true;
             if(xmax != xid) {
-                if(!tm.isCommitted(xmax)) {
+                if(!xmaxCommitted) {
                     return true;
                 }
             }
@@ -39,16 +90,14 @@ public class Visibility {
         return false;
     }
 
-    private static boolean repeatableRead(TransactionManager tm, Transaction t, Entry e) {
+    private static boolean repeatableRead(Transaction t, long xmin, long xmax, boolean xminCommitted, boolean xmaxCommitted) {
         long xid = t.xid;
-        long xmin = e.getXmin();
-        long xmax = e.getXmax();
         if(xmin == xid && xmax == 0) return true;
 
-        if(tm.isCommitted(xmin) && xmin < xid && !t.isInSnapshot(xmin)) {
+        if(xminCommitted && t.snapshot.isBefore(xmin)) {
             if(xmax == 0) return true;
             if(xmax != xid) {
-                if(!tm.isCommitted(xmax) || xmax > xid || t.isInSnapshot(xmax)) {
+                if(!xmaxCommitted || !t.snapshot.isBefore(xmax)) {
                     return true;
                 }
             }
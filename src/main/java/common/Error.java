@@ -24,8 +24,12 @@ public class Error {
 
     // vm
     public static final Exception DeadlockException = new RuntimeException("Deadlock!");
+    public static final Exception LockWaitTimeoutException = new RuntimeException("Lock wait timeout!");
     public static final Exception ConcurrentUpdateException = new RuntimeException("Concurrent update issue!");
     public static final Exception NullEntryException = new RuntimeException("Null entry!");
+    public static final Exception ReadOnlyTransactionException = new RuntimeException("Write in read-only transaction!");
+    public static final Exception SerializationFailureException = new RuntimeException("Could not serialize access due to read/write dependencies!");
+    public static final Exception UnversionedEntryException = new RuntimeException("Entry in old format cannot be updated!");
 
     // tbm
     public static final Exception InvalidFieldException = new RuntimeException("Invalid field type!");